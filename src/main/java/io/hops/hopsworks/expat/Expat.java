@@ -18,28 +18,47 @@
 package io.hops.hopsworks.expat;
 
 import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
+import io.hops.hopsworks.expat.configuration.ExpatConf;
 import io.hops.hopsworks.expat.executor.ProcessExecutor;
 import io.hops.hopsworks.expat.executor.ShutdownManager;
+import io.hops.hopsworks.expat.executor.StepScheduler;
+import io.hops.hopsworks.expat.kubernetes.KubernetesClientFactory;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.MigrationJournal;
 import io.hops.hopsworks.expat.migrations.RollbackException;
 import io.hops.hopsworks.expat.migrations.conda.CreateKagentLogsIndeces;
+import io.hops.hopsworks.expat.migrations.x509.CertificateRevoker;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import static org.kohsuke.args4j.OptionHandlerFilter.ALL;
 
 public class Expat {
 
-  @Option(name="-a", usage="Action to take: migrate/rollback")
+  @Option(name="-a", usage="Action to take: migrate/rollback/status/revoke")
   private String command = "migrate";
 
   @Option(name="-v", usage="Version to migrate to or to rollback")
   private String version;
 
+  @Option(name="-f", usage="Ignore the migration journal and run all the steps of the version")
+  private boolean force = false;
+
+  @Option(name="-d", usage="Certificates backup directory to revoke, defaults to the latest of each certificates step")
+  private String backupDir;
+
   public Expat(String[] args) {
     CmdLineParser parser = new CmdLineParser(this);
 
@@ -64,13 +83,20 @@ public class Expat {
   }
 
   public void run() throws ConfigurationException, MigrationException, RollbackException,
-      ClassNotFoundException, InstantiationException, IllegalAccessException {
+      ClassNotFoundException, InstantiationException, IllegalAccessException, SQLException {
+
+    if (command.equalsIgnoreCase("status")) {
+      printStatus(version != null ? normalizeVersion(version) : null);
+      return;
+    }
+
+    if (command.equalsIgnoreCase("revoke")) {
+      revokeCertificates();
+      return;
+    }
 
     Configuration config = ConfigurationBuilder.getConfiguration();
-    // If the version contains SNAPSHOT, remove it
-    version = version.replace("-SNAPSHOT", "");
-    // Remove minor version until HOPSWORKS-814 is fixed
-    version = version.substring(0, version.lastIndexOf("."));
+    version = normalizeVersion(version);
 
     String migrations = config.getString("version-" + version.replace(".", ""));
 
@@ -80,21 +106,80 @@ public class Expat {
     }
 
     String[] migrationClasses = migrations.split("\n");
+    List<MigrateStep> steps = new ArrayList<>(migrationClasses.length);
     for (String migration : migrationClasses) {
-      MigrateStep step = (MigrateStep) Class.forName(migration.trim()).newInstance();
+      if (migration.trim().isEmpty()) {
+        continue;
+      }
+      steps.add((MigrateStep) Class.forName(migration.trim()).newInstance());
+    }
+
+    MigrationJournal journal = force ? null : MigrationJournal.open();
+    try {
+      StepScheduler scheduler = new StepScheduler(config.getInt(ExpatConf.EXPAT_PARALLELISM,
+          ExpatConf.EXPAT_PARALLELISM_DEFAULT), version, journal);
       if (command.equalsIgnoreCase("migrate")) {
-        step.migrate();
+        scheduler.migrate(steps);
       } else {
-        step.rollback();
+        scheduler.rollback(steps);
+      }
+    } finally {
+      if (journal != null) {
+        journal.close();
       }
     }
   }
 
+  private String normalizeVersion(String version) {
+    // If the version contains SNAPSHOT, remove it
+    version = version.replace("-SNAPSHOT", "");
+    // Remove minor version until HOPSWORKS-814 is fixed
+    return version.substring(0, version.lastIndexOf("."));
+  }
+
+  private void printStatus(String version) throws ConfigurationException, SQLException {
+    try (MigrationJournal journal = MigrationJournal.openReadOnly()) {
+      if (journal == null) {
+        System.out.println("No migration journal, no migration has been run yet");
+        return;
+      }
+      List<MigrationJournal.Entry> entries = journal.getEntries(version);
+      if (entries.isEmpty()) {
+        System.out.println("No migration steps recorded" + (version != null ? " for version " + version : ""));
+        return;
+      }
+      String format = "%-8s %-70s %-13s %-23s %-23s %10s %10s%n";
+      System.out.printf(format, "VERSION", "STEP", "STATUS", "STARTED", "FINISHED", "PROCESSED", "FAILED");
+      for (MigrationJournal.Entry entry : entries) {
+        System.out.printf(format, entry.getVersion(), entry.getStep(), entry.getStatus(),
+            entry.getStartTime() != null ? entry.getStartTime() : "-",
+            entry.getEndTime() != null ? entry.getEndTime() : "-",
+            entry.getItemsProcessed(), entry.getItemsFailed());
+      }
+    }
+  }
+
+  private void revokeCertificates() throws ConfigurationException, MigrationException {
+    List<Path> backupDirs = backupDir != null ? Collections.singletonList(Paths.get(backupDir))
+        : CertificateRevoker.latestBackupDirs();
+    if (backupDirs.isEmpty()) {
+      System.out.println("No certificates backup directory to revoke");
+      return;
+    }
+    try {
+      int revoked = CertificateRevoker.fromConfig(ConfigurationBuilder.getConfiguration()).revoke(backupDirs);
+      System.out.println("Revoked " + revoked + " certificates from " + backupDirs);
+    } catch (IOException ex) {
+      throw new MigrationException("Could not revoke certificates in " + backupDirs, ex);
+    }
+  }
+
   public static void main(String[] args) throws Exception {
     Expat e = new Expat(args);
   
     ShutdownManager.getManager().addShutdownHook(new ProcessExecutor.ShutdownHook(), 100);
     ShutdownManager.getManager().addShutdownHook(new CreateKagentLogsIndeces.ShutdownHook(), 150);
+    ShutdownManager.getManager().addShutdownHook(new KubernetesClientFactory.ShutdownHook(), 120);
     
     e.run();
   }
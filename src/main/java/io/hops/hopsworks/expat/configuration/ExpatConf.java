@@ -20,6 +20,8 @@ package io.hops.hopsworks.expat.configuration;
 public class ExpatConf {
   private static final String EXPAT_PREFIX = "expat.";
   public static final String EXPAT_PATH = EXPAT_PREFIX + "dir";
+  public static final String EXPAT_PARALLELISM = EXPAT_PREFIX + "parallelism";
+  public static final int EXPAT_PARALLELISM_DEFAULT = 4;
 
   // ------ Database Configuration ------ //
   private static final String DATABASE_PREFIX = "database.";
@@ -43,18 +45,68 @@ public class ExpatConf {
   public static final String KUBE_CERTFILE_KEY = KUBE_PREFIX + "certFile";
   public static final String KUBE_KEYFILE_KEY = KUBE_PREFIX + "keyFile";
   public static final String KUBE_KEYPWD_KEY = KUBE_PREFIX + "keyPwd";
+  public static final String KUBE_WORKERS = KUBE_PREFIX + "workers";
+  public static final int KUBE_WORKERS_DEFAULT = 8;
+  public static final String KUBE_REQUESTS_PER_SECOND = KUBE_PREFIX + "requestsPerSecond";
+  public static final double KUBE_REQUESTS_PER_SECOND_DEFAULT = 20;
+  public static final String KUBE_RECONCILE = KUBE_PREFIX + "reconcile";
+  public static final String KUBE_LIST_PAGE_SIZE = KUBE_PREFIX + "listPageSize";
+  public static final int KUBE_LIST_PAGE_SIZE_DEFAULT = 500;
+  public static final String KUBE_CONNECTION_POOL_SIZE = KUBE_PREFIX + "connectionPoolSize";
+  public static final int KUBE_CONNECTION_POOL_SIZE_DEFAULT = 16;
+  public static final String KUBE_CONNECT_TIMEOUT_MS = KUBE_PREFIX + "connectTimeoutMs";
+  public static final int KUBE_CONNECT_TIMEOUT_MS_DEFAULT = 10000;
+  public static final String KUBE_REQUEST_TIMEOUT_MS = KUBE_PREFIX + "requestTimeoutMs";
+  public static final int KUBE_REQUEST_TIMEOUT_MS_DEFAULT = 30000;
+  public static final String KUBE_HTTP2 = KUBE_PREFIX + "http2";
+  public static final String KUBE_TERMINATION_WAIT_SECONDS = KUBE_PREFIX + "terminationWaitSeconds";
 
   // ------- X.509 configuration -------- //
   private static final String CERTS_PREFIX = "x509.";
   public static final String MASTER_PWD_FILE_KEY = CERTS_PREFIX + "masterPwdFile";
   public static final String INTERMEDIATE_CA_PATH = CERTS_PREFIX + "intermediateCA";
   public static final String CREATE_USER_CERT_SCRIPT = CERTS_PREFIX + "userCertsScript";
+  public static final String INTERMEDIATE_CA_KEY_PWD = CERTS_PREFIX + "intermediateCAKeyPwd";
+  public static final String CERTS_GENERATOR = CERTS_PREFIX + "generator";
+  public static final String CERTS_GENERATOR_SCRIPT = "script";
+  public static final String CERTS_GENERATOR_JVM = "jvm";
+  public static final String CERTS_GENERATION_THREADS = CERTS_PREFIX + "generationThreads";
+  public static final String CERTS_KEY_SIZE = CERTS_PREFIX + "keySize";
+  public static final int CERTS_KEY_SIZE_DEFAULT = 2048;
+  public static final String CERTS_VALIDITY_DAYS = CERTS_PREFIX + "validityDays";
+  public static final long CERTS_VALIDITY_DAYS_DEFAULT = 3650;
+  public static final String CERTS_KEY_POOL_THREADS = CERTS_PREFIX + "keyPoolThreads";
+  public static final String CERTS_KEY_POOL_SIZE = CERTS_PREFIX + "keyPoolSize";
+  public static final int CERTS_KEY_POOL_SIZE_DEFAULT = 1000;
+  public static final String CERTS_PERSIST_CHUNK_SIZE = CERTS_PREFIX + "persistChunkSize";
+  public static final int CERTS_PERSIST_CHUNK_SIZE_DEFAULT = 500;
+  public static final String CERTS_REVOKE_AFTER_MIGRATION = CERTS_PREFIX + "revokeAfterMigration";
+  public static final String CERTS_CRL = CERTS_PREFIX + "crl";
+  public static final String CERTS_CRL_DAYS = CERTS_PREFIX + "crlDays";
+  public static final int CERTS_CRL_DAYS_DEFAULT = 30;
+  private static final String REGENERATE_PREFIX = CERTS_PREFIX + "regenerate.";
+  public static final String REGENERATE_ISSUER = REGENERATE_PREFIX + "issuer";
+  public static final String REGENERATE_SUBJECT_PATTERN = REGENERATE_PREFIX + "subjectPattern";
+  public static final String REGENERATE_MIN_KEY_SIZE = REGENERATE_PREFIX + "minKeySize";
+  public static final String REGENERATE_EXPIRES_WITHIN_DAYS = REGENERATE_PREFIX + "expiresWithinDays";
 
   // ------- Conda -------- //
   private static final String CONDA_PREFIX = "conda.";
   public static final String CONDA_DIR = CONDA_PREFIX + "dir";
   public static final String CONDA_USER = CONDA_PREFIX + "user";
   
+  // ------ Jobs -------- //
+  private static final String JOBS_PREFIX = "jobs.";
+  public static final String JOBS_CHUNK_SIZE = JOBS_PREFIX + "chunkSize";
+  public static final int JOBS_CHUNK_SIZE_DEFAULT = 1000;
+  public static final String JOBS_WORKERS = JOBS_PREFIX + "workers";
+  public static final String JOBS_PUSHDOWN = JOBS_PREFIX + "pushdown";
+  public static final boolean JOBS_PUSHDOWN_DEFAULT = true;
+  public static final String JOBS_WRITER = JOBS_PREFIX + "writer";
+  public static final String JOBS_STEP_WRITER_FORMAT = JOBS_PREFIX + "%s.writer";
+  public static final String JOBS_CACHE_SIZE = JOBS_PREFIX + "cacheSize";
+  public static final long JOBS_CACHE_SIZE_DEFAULT = 10000;
+  
   // ------ Services -------- //
   private static final String SERVICES_PREFIX = "services.";
   public static final String KIBANA_URI= SERVICES_PREFIX + "kibana-url";
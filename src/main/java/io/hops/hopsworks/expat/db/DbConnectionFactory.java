@@ -41,10 +41,14 @@ public class DbConnectionFactory {
     ds.setPassword(config.getString(ExpatConf.DATABASE_PASSWORD_KEY));
   }
 
-  public static Connection getConnection() throws ConfigurationException, SQLException {
+  private static synchronized HikariDataSource getDataSource() throws ConfigurationException {
     if (ds == null) {
       init();
     }
-    return ds.getConnection();
+    return ds;
+  }
+
+  public static Connection getConnection() throws ConfigurationException, SQLException {
+    return getDataSource().getConnection();
   }
 }
@@ -0,0 +1,162 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Three stage pipeline: a single reader thread produces items, a pool of worker threads
+ * transforms them and a pool of writer threads consumes the results. Stages are connected with
+ * bounded queues, so a slow stage blocks the stages before it instead of buffering everything
+ * in memory.
+ *
+ * Transformations returning null are not passed to the writers. If any stage fails the
+ * pipeline is cancelled and the first failure is thrown from {@link #run}.
+ */
+public final class Pipeline<I, O> {
+  private static final Logger LOG = LogManager.getLogger(Pipeline.class);
+  private static final Object END = new Object();
+  
+  private final String name;
+  private final int workers;
+  private final int writers;
+  private final int queueCapacity;
+  
+  public Pipeline(String name, int workers, int writers, int queueCapacity) {
+    this.name = name;
+    this.workers = Math.max(1, workers);
+    this.writers = Math.max(1, writers);
+    this.queueCapacity = Math.max(1, queueCapacity);
+  }
+  
+  public void run(Reader<I> reader, Transform<I, O> transform, Writer<O> writer)
+      throws ExecutionException, InterruptedException {
+    BlockingQueue<Object> toWorkers = new ArrayBlockingQueue<>(queueCapacity);
+    BlockingQueue<Object> toWriters = new ArrayBlockingQueue<>(queueCapacity);
+    AtomicInteger runningWorkers = new AtomicInteger(workers);
+    AtomicInteger runningWriters = new AtomicInteger(writers);
+    
+    ExecutorService pool = Executors.newFixedThreadPool(1 + workers + writers, new DaemonThreadFactory(name));
+    CompletionService<Void> stages = new ExecutorCompletionService<>(pool);
+    List<Future<Void>> futures = new ArrayList<>(1 + workers + writers);
+    try {
+      futures.add(stages.submit(() -> {
+        reader.read(item -> toWorkers.put(item));
+        for (int i = 0; i < workers; i++) {
+          toWorkers.put(END);
+        }
+        return null;
+      }));
+      for (int i = 0; i < workers; i++) {
+        futures.add(stages.submit(() -> {
+          Object item;
+          while ((item = toWorkers.take()) != END) {
+            @SuppressWarnings("unchecked")
+            O result = transform.apply((I) item);
+            if (result != null) {
+              toWriters.put(result);
+            }
+          }
+          if (runningWorkers.decrementAndGet() == 0) {
+            for (int w = 0; w < writers; w++) {
+              toWriters.put(END);
+            }
+          }
+          return null;
+        }));
+      }
+      for (int i = 0; i < writers; i++) {
+        futures.add(stages.submit(() -> {
+          Object item;
+          while ((item = toWriters.take()) != END) {
+            @SuppressWarnings("unchecked")
+            O result = (O) item;
+            writer.write(result);
+          }
+          if (runningWriters.decrementAndGet() == 0) {
+            writer.finish();
+          }
+          return null;
+        }));
+      }
+      
+      awaitAll(stages, futures);
+    } finally {
+      pool.shutdownNow();
+      if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+        LOG.warn("Threads of pipeline " + name + " did not terminate");
+      }
+    }
+  }
+  
+  private void awaitAll(CompletionService<Void> stages, List<Future<Void>> futures)
+      throws ExecutionException, InterruptedException {
+    // Wait on whichever stage finishes first, so that a failure in any of them cancels the others.
+    // Otherwise the stages before a failed one would block forever on a full queue.
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        stages.take().get();
+      } catch (ExecutionException ex) {
+        for (Future<Void> future : futures) {
+          future.cancel(true);
+        }
+        throw ex;
+      }
+    }
+  }
+  
+  @FunctionalInterface
+  public interface Reader<I> {
+    void read(Emitter<I> emitter) throws Exception;
+  }
+  
+  @FunctionalInterface
+  public interface Emitter<I> {
+    void emit(I item) throws InterruptedException;
+  }
+  
+  @FunctionalInterface
+  public interface Transform<I, O> {
+    O apply(I item) throws Exception;
+  }
+  
+  public interface Writer<O> {
+    void write(O item) throws Exception;
+    
+    /**
+     * Called once, after the last item has been written
+     */
+    default void finish() throws Exception {
+    }
+  }
+}
@@ -48,7 +48,7 @@ public final class ProcessExecutor {
         new DaemonThreadFactory("ProcessExecutor"));
   }
   
-  public static ProcessExecutor getExecutor() {
+  public static synchronized ProcessExecutor getExecutor() {
     if (instance == null) {
       instance = new ProcessExecutor();
     }
@@ -75,6 +75,14 @@ public final class ProcessExecutor {
     }
   }
   
+  /**
+   * Every running process needs a pool thread for each of its output streams, callers waiting on
+   * more processes than this can starve the pool.
+   */
+  public int getMaxConcurrentProcesses() {
+    return EXECUTOR_THREADS / 2;
+  }
+  
   public ProcessResult execute(ProcessDescriptor processDescriptor) throws IOException {
     try {
       return runProcess(processDescriptor);
@@ -0,0 +1,302 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.executor;
+
+import io.hops.hopsworks.expat.migrations.DependsOn;
+import io.hops.hopsworks.expat.migrations.MigrateStep;
+import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.MigrationJournal;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
+import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import io.hops.hopsworks.expat.migrations.VersionedStep;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs the steps of a version on a bounded pool. A step is started as soon as all the steps it
+ * depends on (see {@link DependsOn}) have finished. When a step fails no new steps are started,
+ * the running ones are allowed to finish and the first failure is reported.
+ *
+ * If a {@link MigrationJournal} is given, steps already applied for the version are skipped and
+ * every step run is recorded in it.
+ */
+public final class StepScheduler {
+  private static final Logger LOG = LogManager.getLogger(StepScheduler.class);
+  
+  private final int parallelism;
+  private final String version;
+  private final MigrationJournal journal;
+  
+  public StepScheduler(int parallelism, String version, MigrationJournal journal) {
+    this.parallelism = Math.max(1, parallelism);
+    this.version = version;
+    this.journal = journal;
+  }
+  
+  public void migrate(List<MigrateStep> steps) throws MigrationException {
+    Throwable failure;
+    try {
+      failure = execute(steps, false, MigrateStep::migrate);
+    } catch (IllegalStateException ex) {
+      throw new MigrationException(ex.getMessage(), ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while waiting for migration steps", ex);
+    }
+    if (failure instanceof MigrationException) {
+      throw (MigrationException) failure;
+    } else if (failure != null) {
+      throw new MigrationException("Migration step failed", failure);
+    }
+  }
+  
+  public void rollback(List<MigrateStep> steps) throws RollbackException {
+    Throwable failure;
+    try {
+      failure = execute(steps, true, MigrateStep::rollback);
+    } catch (IllegalStateException ex) {
+      throw new RollbackException(ex.getMessage(), ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RollbackException("Interrupted while waiting for rollback steps", ex);
+    }
+    if (failure instanceof RollbackException) {
+      throw (RollbackException) failure;
+    } else if (failure != null) {
+      throw new RollbackException("Rollback step failed", failure);
+    }
+  }
+  
+  private Throwable execute(List<MigrateStep> steps, boolean reverse, StepAction action)
+      throws InterruptedException {
+    int size = steps.size();
+    if (size == 0) {
+      return null;
+    }
+    // waitingOn[i] is the number of unfinished steps step i has to wait for,
+    // dependents.get(i) are the steps waiting for step i
+    int[] waitingOn = new int[size];
+    List<List<Integer>> dependents = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      dependents.add(new ArrayList<>());
+    }
+    for (int i = 0; i < size; i++) {
+      for (int dependency : dependenciesOf(steps, i)) {
+        if (reverse) {
+          dependents.get(i).add(dependency);
+          waitingOn[dependency]++;
+        } else {
+          dependents.get(dependency).add(i);
+          waitingOn[i]++;
+        }
+      }
+    }
+    checkForCycles(steps, waitingOn, dependents);
+    
+    // Among the steps that are ready keep the order of the configuration, reversed for rollback
+    PriorityQueue<Integer> ready = new PriorityQueue<>(reverse ? Comparator.reverseOrder()
+        : Comparator.<Integer>naturalOrder());
+    for (int i = 0; i < size; i++) {
+      if (waitingOn[i] == 0) {
+        ready.add(i);
+      }
+    }
+    
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, size),
+        new DaemonThreadFactory("StepScheduler"));
+    CompletionService<Integer> completionService = new ExecutorCompletionService<>(pool);
+    AtomicReferenceArray<String> outcomes = new AtomicReferenceArray<>(size);
+    int running = 0, finished = 0, failed = 0;
+    Throwable failure = null;
+    try {
+      while (true) {
+        while (failure == null && !ready.isEmpty()) {
+          int idx = ready.poll();
+          completionService.submit(new StepWorker(steps.get(idx), idx, reverse, action, outcomes));
+          running++;
+        }
+        if (running == 0) {
+          break;
+        }
+        Future<Integer> done = completionService.take();
+        running--;
+        try {
+          int idx = done.get();
+          finished++;
+          for (int dependent : dependents.get(idx)) {
+            if (--waitingOn[dependent] == 0) {
+              ready.add(dependent);
+            }
+          }
+        } catch (ExecutionException ex) {
+          failed++;
+          if (failure == null) {
+            failure = ex.getCause();
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    if (finished + failed < size) {
+      LOG.warn((size - finished - failed) + " step(s) were not executed because of previous failures");
+    }
+    logReport(steps, outcomes);
+    return failure;
+  }
+  
+  private void logReport(List<MigrateStep> steps, AtomicReferenceArray<String> outcomes) {
+    StringBuilder report = new StringBuilder("Run report for version ").append(version);
+    for (int i = 0; i < steps.size(); i++) {
+      String outcome = outcomes.get(i);
+      report.append("\n  ").append(steps.get(i).getClass().getName()).append(": ")
+          .append(outcome != null ? outcome : "NOT EXECUTED");
+    }
+    LOG.info(report.toString());
+  }
+  
+  private List<Integer> dependenciesOf(List<MigrateStep> steps, int idx) {
+    DependsOn dependsOn = steps.get(idx).getClass().getAnnotation(DependsOn.class);
+    if (dependsOn == null) {
+      return Collections.emptyList();
+    }
+    List<Integer> dependencies = new ArrayList<>();
+    for (Class<? extends MigrateStep> dependency : dependsOn.value()) {
+      for (int i = 0; i < steps.size(); i++) {
+        if (i != idx && dependency.isInstance(steps.get(i))) {
+          dependencies.add(i);
+        }
+      }
+    }
+    return dependencies;
+  }
+  
+  private void checkForCycles(List<MigrateStep> steps, int[] waitingOn, List<List<Integer>> dependents) {
+    int[] remaining = waitingOn.clone();
+    List<Integer> queue = new ArrayList<>();
+    for (int i = 0; i < remaining.length; i++) {
+      if (remaining[i] == 0) {
+        queue.add(i);
+      }
+    }
+    for (int head = 0; head < queue.size(); head++) {
+      for (int dependent : dependents.get(queue.get(head))) {
+        if (--remaining[dependent] == 0) {
+          queue.add(dependent);
+        }
+      }
+    }
+    if (queue.size() < steps.size()) {
+      StringBuilder cycle = new StringBuilder();
+      for (int i = 0; i < remaining.length; i++) {
+        if (remaining[i] > 0) {
+          cycle.append(" ").append(steps.get(i).getClass().getName());
+        }
+      }
+      throw new IllegalStateException("Circular dependency between migration steps:" + cycle);
+    }
+  }
+  
+  @FunctionalInterface
+  private interface StepAction {
+    void apply(MigrateStep step) throws Exception;
+  }
+  
+  private final class StepWorker implements Callable<Integer> {
+    private final MigrateStep step;
+    private final int idx;
+    private final boolean rollback;
+    private final StepAction action;
+    private final AtomicReferenceArray<String> outcomes;
+    
+    private StepWorker(MigrateStep step, int idx, boolean rollback, StepAction action,
+        AtomicReferenceArray<String> outcomes) {
+      this.step = step;
+      this.idx = idx;
+      this.rollback = rollback;
+      this.action = action;
+      this.outcomes = outcomes;
+    }
+    
+    @Override
+    public Integer call() throws Exception {
+      String name = step.getClass().getName();
+      if (journal != null) {
+        MigrationJournal.Status status = journal.getStatus(version, name);
+        if ((!rollback && status == MigrationJournal.Status.COMPLETED)
+            || (rollback && status == MigrationJournal.Status.ROLLED_BACK)) {
+          LOG.info("Skipping step " + name + ", journal status is " + status);
+          outcomes.set(idx, "SKIPPED (" + status + ")");
+          return idx;
+        }
+        if (status == MigrationJournal.Status.RUNNING || status == MigrationJournal.Status.ROLLING_BACK) {
+          LOG.info("Step " + name + " was interrupted in a previous run, resuming it");
+        }
+        journal.stepStarted(version, name, rollback ? MigrationJournal.Status.ROLLING_BACK
+            : MigrationJournal.Status.RUNNING);
+      }
+      StepMetrics metrics = step instanceof ReportingStep ? ((ReportingStep) step).getMetrics() : null;
+      if (step instanceof VersionedStep) {
+        ((VersionedStep) step).setVersion(version);
+      }
+      
+      LOG.info("Starting step " + name);
+      long start = System.currentTimeMillis();
+      try {
+        action.apply(step);
+      } catch (Exception ex) {
+        long elapsed = System.currentTimeMillis() - start;
+        LOG.error("Step " + name + " failed after " + elapsed + " ms", ex);
+        outcomes.set(idx, describe(MigrationJournal.Status.FAILED, elapsed, metrics));
+        if (journal != null) {
+          journal.stepFinished(version, name, MigrationJournal.Status.FAILED, metrics);
+        }
+        throw ex;
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      MigrationJournal.Status status = rollback ? MigrationJournal.Status.ROLLED_BACK
+          : MigrationJournal.Status.COMPLETED;
+      LOG.info("Finished step " + name + " in " + elapsed + " ms");
+      outcomes.set(idx, describe(status, elapsed, metrics));
+      if (journal != null) {
+        journal.stepFinished(version, name, status, metrics);
+      }
+      return idx;
+    }
+    
+    private String describe(MigrationJournal.Status status, long elapsed, StepMetrics metrics) {
+      return status + " in " + elapsed + " ms" + (metrics != null ? " [" + metrics + "]" : "");
+    }
+  }
+}
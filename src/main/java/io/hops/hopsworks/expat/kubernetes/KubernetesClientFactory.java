@@ -21,20 +21,50 @@ import io.fabric8.kubernetes.client.Config;
 import io.fabric8.kubernetes.client.ConfigBuilder;
 import io.fabric8.kubernetes.client.DefaultKubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.HttpClientUtils;
 import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
 import io.hops.hopsworks.expat.configuration.ExpatConf;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out one Kubernetes client for the whole process, so the steps share its connection pool
+ * instead of each opening its own. The client must not be closed by the steps, the
+ * {@link ShutdownHook} closes it when Expat exits.
+ */
 public class KubernetesClientFactory {
+  private static final Logger LOGGER = LogManager.getLogger(KubernetesClientFactory.class);
+  private static final long KEEP_ALIVE_MINUTES = 5;
 
-  private static Config kubeConfig = null;
+  private static DefaultKubernetesClient client = null;
+  private static ConnectionPool connectionPool = null;
+  private static final PoolStats poolStats = new PoolStats();
 
-  public static KubernetesClient getClient() throws ConfigurationException {
-    Configuration config = ConfigurationBuilder.getConfiguration();
+  public static synchronized KubernetesClient getClient() throws ConfigurationException {
+    if (client == null) {
+      Configuration config = ConfigurationBuilder.getConfiguration();
+      int connectTimeout = config.getInt(ExpatConf.KUBE_CONNECT_TIMEOUT_MS, ExpatConf.KUBE_CONNECT_TIMEOUT_MS_DEFAULT);
+      int requestTimeout = config.getInt(ExpatConf.KUBE_REQUEST_TIMEOUT_MS, ExpatConf.KUBE_REQUEST_TIMEOUT_MS_DEFAULT);
+      int poolSize = config.getInt(ExpatConf.KUBE_CONNECTION_POOL_SIZE, ExpatConf.KUBE_CONNECTION_POOL_SIZE_DEFAULT);
+      boolean http2 = config.getBoolean(ExpatConf.KUBE_HTTP2, true);
 
-    if (kubeConfig == null) {
-      kubeConfig = new ConfigBuilder()
+      Config kubeConfig = new ConfigBuilder()
           .withUsername(config.getString(ExpatConf.KUBE_USER_KEY))
           .withMasterUrl(config.getString(ExpatConf.KUBE_MASTER_URL_KEY))
           .withCaCertFile(config.getString(ExpatConf.KUBE_CA_CERTFILE_KEY))
@@ -45,9 +75,108 @@ public class KubernetesClientFactory {
           .withClientCertFile(config.getString(ExpatConf.KUBE_CERTFILE_KEY))
           .withClientKeyFile(config.getString(ExpatConf.KUBE_KEYFILE_KEY))
           .withClientKeyPassphrase(config.getString(ExpatConf.KUBE_KEYPWD_KEY))
+          .withConnectionTimeout(connectTimeout)
+          .withRequestTimeout(requestTimeout)
+          .build();
+
+      connectionPool = new ConnectionPool(poolSize, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+      // HTTP/2 is negotiated with ALPN, servers that do not offer it are spoken to over HTTP/1.1
+      OkHttpClient httpClient = HttpClientUtils.createHttpClient(kubeConfig).newBuilder()
+          .connectionPool(connectionPool)
+          .protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+              : Collections.singletonList(Protocol.HTTP_1_1))
+          .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+          .readTimeout(requestTimeout, TimeUnit.MILLISECONDS)
+          .writeTimeout(requestTimeout, TimeUnit.MILLISECONDS)
+          .eventListener(poolStats)
           .build();
+      client = new DefaultKubernetesClient(httpClient, kubeConfig);
+      LOGGER.info("Created Kubernetes client for " + kubeConfig.getMasterUrl() + " with a pool of " + poolSize
+          + " connections" + (http2 ? ", HTTP/2 enabled" : ""));
+    }
+
+    return client;
+  }
+
+  /**
+   * Starts counting the use of the shared client by a step. Steps running at the same time count
+   * each other's requests.
+   */
+  public static Usage startUsage() {
+    return new Usage(poolStats.requests.get(), poolStats.connectionsOpened.get(),
+        poolStats.connectionsAcquired.get());
+  }
+
+  private static synchronized void close() {
+    if (client != null) {
+      client.close();
+      connectionPool.evictAll();
+      LOGGER.info("Closed Kubernetes client after " + poolStats.requests.get() + " requests over "
+          + poolStats.connectionsOpened.get() + " connections");
+      client = null;
+    }
+  }
+
+  private static class PoolStats extends EventListener {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+
+    @Override
+    public void callStart(Call call) {
+      requests.incrementAndGet();
     }
 
-    return new DefaultKubernetesClient(kubeConfig);
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+      connectionsOpened.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      connectionsAcquired.incrementAndGet();
+    }
+  }
+
+  /**
+   * Use of the shared client since {@link #startUsage()}
+   */
+  public static class Usage {
+    private final long requests;
+    private final long connectionsOpened;
+    private final long connectionsAcquired;
+
+    private Usage(long requests, long connectionsOpened, long connectionsAcquired) {
+      this.requests = requests;
+      this.connectionsOpened = connectionsOpened;
+      this.connectionsAcquired = connectionsAcquired;
+    }
+
+    /**
+     * Records the requests and connections since the start in the metrics of the step, along with
+     * the current state of the pool
+     */
+    public void record(StepMetrics metrics) {
+      synchronized (KubernetesClientFactory.class) {
+        if (connectionPool == null) {
+          return;
+        }
+        long opened = poolStats.connectionsOpened.get() - connectionsOpened;
+        long acquired = poolStats.connectionsAcquired.get() - connectionsAcquired;
+        metrics.set("k8sRequests", poolStats.requests.get() - requests);
+        metrics.set("k8sConnectionsOpened", opened);
+        metrics.set("k8sConnectionsReused", Math.max(0, acquired - opened));
+        metrics.set("k8sPoolConnections", connectionPool.connectionCount());
+        metrics.set("k8sPoolIdle", connectionPool.idleConnectionCount());
+      }
+    }
+  }
+
+  public static class ShutdownHook implements Runnable {
+
+    @Override
+    public void run() {
+      close();
+    }
   }
 }
@@ -0,0 +1,212 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.migrations;
+
+import io.hops.hopsworks.expat.db.DbConnectionFactory;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records in the Hopsworks database which migration steps have been applied, so that a failed
+ * upgrade can be re-run without repeating the steps that completed.
+ */
+public class MigrationJournal implements AutoCloseable {
+  private static final String JOURNAL_TABLE = "expat_journal";
+  private static final String CREATE_JOURNAL = "CREATE TABLE IF NOT EXISTS expat_journal (" +
+      "version VARCHAR(32) NOT NULL, " +
+      "step VARCHAR(255) NOT NULL, " +
+      "status VARCHAR(16) NOT NULL, " +
+      "start_time TIMESTAMP NULL DEFAULT NULL, " +
+      "end_time TIMESTAMP NULL DEFAULT NULL, " +
+      "items_processed BIGINT NOT NULL DEFAULT 0, " +
+      "items_failed BIGINT NOT NULL DEFAULT 0, " +
+      "PRIMARY KEY (version, step))";
+  private static final String GET_STATUS = "SELECT status FROM expat_journal WHERE version = ? AND step = ?";
+  private static final String START_STEP = "INSERT INTO expat_journal (version, step, status, start_time) " +
+      "VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE status = VALUES(status), start_time = VALUES(start_time), " +
+      "end_time = NULL, items_processed = 0, items_failed = 0";
+  private static final String FINISH_STEP = "UPDATE expat_journal SET status = ?, end_time = ?, " +
+      "items_processed = ?, items_failed = ? WHERE version = ? AND step = ?";
+  private static final String GET_ENTRIES = "SELECT * FROM expat_journal ORDER BY version, start_time";
+  private static final String GET_VERSION_ENTRIES = "SELECT * FROM expat_journal WHERE version = ? " +
+      "ORDER BY start_time";
+  
+  public enum Status {
+    RUNNING,
+    COMPLETED,
+    ROLLING_BACK,
+    ROLLED_BACK,
+    FAILED
+  }
+  
+  private final Connection connection;
+  
+  private MigrationJournal(Connection connection) {
+    this.connection = connection;
+  }
+  
+  public static MigrationJournal open() throws ConfigurationException, SQLException {
+    Connection connection = DbConnectionFactory.getConnection();
+    try (Statement stmt = connection.createStatement()) {
+      stmt.execute(CREATE_JOURNAL);
+    } catch (SQLException ex) {
+      connection.close();
+      throw ex;
+    }
+    return new MigrationJournal(connection);
+  }
+  
+  /**
+   * Opens the journal without creating it, for reading
+   *
+   * @return null if no migration has been journaled yet
+   */
+  public static MigrationJournal openReadOnly() throws ConfigurationException, SQLException {
+    Connection connection = DbConnectionFactory.getConnection();
+    try (ResultSet tables = connection.getMetaData().getTables(connection.getCatalog(), null, JOURNAL_TABLE,
+        new String[]{"TABLE"})) {
+      if (!tables.next()) {
+        connection.close();
+        return null;
+      }
+    } catch (SQLException ex) {
+      connection.close();
+      throw ex;
+    }
+    return new MigrationJournal(connection);
+  }
+  
+  /**
+   * @return the last recorded status of the step or null if the step has never run
+   */
+  public synchronized Status getStatus(String version, String step) throws SQLException {
+    try (PreparedStatement stmt = connection.prepareStatement(GET_STATUS)) {
+      stmt.setString(1, version);
+      stmt.setString(2, step);
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() ? Status.valueOf(rs.getString("status")) : null;
+      }
+    }
+  }
+  
+  public synchronized void stepStarted(String version, String step, Status status) throws SQLException {
+    try (PreparedStatement stmt = connection.prepareStatement(START_STEP)) {
+      stmt.setString(1, version);
+      stmt.setString(2, step);
+      stmt.setString(3, status.name());
+      stmt.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+      stmt.executeUpdate();
+    }
+  }
+  
+  public synchronized void stepFinished(String version, String step, Status status, StepMetrics metrics)
+      throws SQLException {
+    try (PreparedStatement stmt = connection.prepareStatement(FINISH_STEP)) {
+      stmt.setString(1, status.name());
+      stmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+      stmt.setLong(3, metrics != null ? metrics.get(StepMetrics.PROCESSED) : 0L);
+      stmt.setLong(4, metrics != null ? metrics.get(StepMetrics.FAILED) : 0L);
+      stmt.setString(5, version);
+      stmt.setString(6, step);
+      stmt.executeUpdate();
+    }
+  }
+  
+  /**
+   * @param version Version to list the steps of, all versions if null
+   */
+  public synchronized List<Entry> getEntries(String version) throws SQLException {
+    List<Entry> entries = new ArrayList<>();
+    try (PreparedStatement stmt = connection.prepareStatement(version == null ? GET_ENTRIES
+        : GET_VERSION_ENTRIES)) {
+      if (version != null) {
+        stmt.setString(1, version);
+      }
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          entries.add(new Entry(rs.getString("version"), rs.getString("step"),
+              Status.valueOf(rs.getString("status")), rs.getTimestamp("start_time"), rs.getTimestamp("end_time"),
+              rs.getLong("items_processed"), rs.getLong("items_failed")));
+        }
+      }
+    }
+    return entries;
+  }
+  
+  @Override
+  public synchronized void close() throws SQLException {
+    connection.close();
+  }
+  
+  public static class Entry {
+    private final String version;
+    private final String step;
+    private final Status status;
+    private final Timestamp startTime;
+    private final Timestamp endTime;
+    private final long itemsProcessed;
+    private final long itemsFailed;
+    
+    private Entry(String version, String step, Status status, Timestamp startTime, Timestamp endTime,
+        long itemsProcessed, long itemsFailed) {
+      this.version = version;
+      this.step = step;
+      this.status = status;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.itemsProcessed = itemsProcessed;
+      this.itemsFailed = itemsFailed;
+    }
+    
+    public String getVersion() {
+      return version;
+    }
+    
+    public String getStep() {
+      return step;
+    }
+    
+    public Status getStatus() {
+      return status;
+    }
+    
+    public Timestamp getStartTime() {
+      return startTime;
+    }
+    
+    public Timestamp getEndTime() {
+      return endTime;
+    }
+    
+    public long getItemsProcessed() {
+      return itemsProcessed;
+    }
+    
+    public long getItemsFailed() {
+      return itemsFailed;
+    }
+  }
+}
@@ -18,6 +18,10 @@
 package io.hops.hopsworks.expat.migrations;
 
 public class RollbackException extends Exception {
+  public RollbackException(String message) {
+    super(message);
+  }
+  
   public RollbackException(String message, Throwable t) {
     super(message, t);
   }
@@ -0,0 +1,70 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.migrations;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters reported by a migration step. They are recorded in the migration journal and printed
+ * in the run report.
+ */
+public class StepMetrics {
+  public static final String PROCESSED = "processed";
+  public static final String FAILED = "failed";
+  
+  private final Map<String, AtomicLong> counters = Collections.synchronizedMap(new LinkedHashMap<>());
+  
+  public StepMetrics() {
+    counters.put(PROCESSED, new AtomicLong());
+    counters.put(FAILED, new AtomicLong());
+  }
+  
+  public long increment(String counter) {
+    return add(counter, 1L);
+  }
+  
+  public long add(String counter, long delta) {
+    return counters.computeIfAbsent(counter, c -> new AtomicLong()).addAndGet(delta);
+  }
+  
+  public void set(String counter, long value) {
+    counters.computeIfAbsent(counter, c -> new AtomicLong()).set(value);
+  }
+  
+  public long get(String counter) {
+    AtomicLong value = counters.get(counter);
+    return value == null ? 0L : value.get();
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    synchronized (counters) {
+      for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(counter.getKey()).append("=").append(counter.getValue().get());
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -22,7 +22,9 @@ import io.hops.hopsworks.expat.configuration.ExpatConf;
 import io.hops.hopsworks.expat.db.DbConnectionFactory;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.http.HttpHeaders;
@@ -48,7 +50,7 @@ import java.sql.Statement;
 import java.util.HashSet;
 import java.util.Set;
 
-public class CreateKagentLogsIndeces implements MigrateStep {
+public class CreateKagentLogsIndeces implements MigrateStep, ReportingStep {
   private static final Logger LOGGER = LogManager.getLogger(CreateKagentLogsIndeces.class);
   private static final String GET_CONDA_ENABLED_PROJECTS = "SELECT * FROM project WHERE conda_env = 1";
   
@@ -56,6 +58,12 @@ public class CreateKagentLogsIndeces implements MigrateStep {
   private static PoolingHttpClientConnectionManager httpConnectionManager;
   private CloseableHttpClient httpClient;
   private HttpHost kibana;
+  private final StepMetrics metrics = new StepMetrics();
+  
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
   
   private void setup() throws ConfigurationException, SQLException {
     connection = DbConnectionFactory.getConnection();
@@ -81,8 +89,10 @@ public class CreateKagentLogsIndeces implements MigrateStep {
       for (String projectName : projects) {
         try {
           createKibanaIndexPattern(projectName);
+          metrics.increment(StepMetrics.PROCESSED);
         } catch (IOException ex) {
           LOGGER.error("Ooops could not create index-pattern for " + projectName + " Moving on...", ex);
+          metrics.increment(StepMetrics.FAILED);
         }
       }
     } catch (Exception ex) {
@@ -100,8 +110,10 @@ public class CreateKagentLogsIndeces implements MigrateStep {
       for (String projectName : projects) {
         try {
           deleteKibanaIndexPattern(projectName);
+          metrics.increment(StepMetrics.PROCESSED);
         } catch (IOException ex) {
           LOGGER.error("Ooops could not delete index-pattern for " + projectName + " Moving on...", ex);
+          metrics.increment(StepMetrics.FAILED);
         }
       }
     } catch (Exception ex) {
@@ -25,7 +25,9 @@ import io.hops.hopsworks.expat.db.DbConnectionFactory;
 import io.hops.hopsworks.expat.executor.ProcessExecutor;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
@@ -35,7 +37,7 @@ import java.io.IOException;
 import java.sql.*;
 import java.util.concurrent.TimeUnit;
 
-public class JupyterInConda implements MigrateStep {
+public class JupyterInConda implements MigrateStep, ReportingStep {
 
   private static final Logger LOGGER = LogManager.getLogger(JupyterInConda.class);
 
@@ -47,6 +49,13 @@ public class JupyterInConda implements MigrateStep {
   private int sparkmagicId = -1;
   private int jupyterId = -1;
 
+  private final StepMetrics metrics = new StepMetrics();
+
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
+
   @Override
   public void migrate() throws MigrationException {
     Connection dbConn = null;
@@ -89,14 +98,17 @@ public class JupyterInConda implements MigrateStep {
           processResult = ProcessExecutor.getExecutor().execute(jupyterInstallProc);
           if (processResult.getExitCode() == 0) {
             updateProjectPythonDeps(projectDepsUpdate, projectId);
+            metrics.increment(StepMetrics.PROCESSED);
           } else {
             LOGGER.error("Failed to install jupyter for project: " + projectName +
                 " " + processResult.getStdout());
+            metrics.increment(StepMetrics.FAILED);
           }
         } catch (IOException e) {
           // Keep going
           LOGGER.error("Failed to install jupyter for project: " + projectName +
               " " + e.getMessage());
+          metrics.increment(StepMetrics.FAILED);
         }
       }
     } catch (SQLException | ConfigurationException e) {
@@ -156,9 +168,11 @@ public class JupyterInConda implements MigrateStep {
           ProcessExecutor.getExecutor().execute(jupyterInstallProc);
 
           updateProjectPythonDeps(projectDepsUpdate, projectId);
+          metrics.increment(StepMetrics.PROCESSED);
         } catch (IOException e) {
           // Keep going
           LOGGER.error("Failed to install jupyter for project: " + projectName, e);
+          metrics.increment(StepMetrics.FAILED);
         }
       }
     } catch (SQLException | ConfigurationException e) {
@@ -0,0 +1,72 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.jobs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers the result of a transform for the last maxSize distinct configurations. Jobs created
+ * from the same template share byte identical configurations, which are converted only once.
+ * Entries are keyed by the SHA-256 of the configuration so the inputs themselves are not kept.
+ */
+final class CachingJobConfigTransform implements JobConfigTransform {
+  // Cached for configurations the transform leaves as they are, the cache does not take nulls.
+  // Compared by identity, a transform cannot return this instance.
+  private static final String UNCHANGED = new String();
+  
+  private final JobConfigTransform transform;
+  private final Cache<HashCode, String> results;
+  
+  CachingJobConfigTransform(JobConfigTransform transform, long maxSize) {
+    this.transform = transform;
+    this.results = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+  }
+  
+  @Override
+  public String transform(String jsonConfig) {
+    HashCode key = Hashing.sha256().hashString(jsonConfig, StandardCharsets.UTF_8);
+    try {
+      String result = results.get(key, () -> {
+        String transformed = transform.transform(jsonConfig);
+        return transformed == null ? UNCHANGED : transformed;
+      });
+      return result == UNCHANGED ? null : result;
+    } catch (ExecutionException | UncheckedExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+  
+  CacheStats stats() {
+    return results.stats();
+  }
+}
@@ -0,0 +1,405 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.migrations.jobs;
+
+import com.google.common.cache.CacheStats;
+import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
+import io.hops.hopsworks.expat.configuration.ExpatConf;
+import io.hops.hopsworks.expat.db.DbConnectionFactory;
+import io.hops.hopsworks.expat.executor.Pipeline;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Rewrites the json_config column of the jobs table. The table is walked in chunks of ids by a
+ * reader thread, configurations are converted by jobs.workers threads and a writer thread updates
+ * them on its own connection, committing every chunk. Memory usage and lock time do not depend
+ * on the number of jobs and the conversion scales with the number of cores. Configurations that
+ * a transform leaves as they are never reach the writer, so only changed rows are updated.
+ *
+ * Rules that {@link JobConfigRules#toSql()} can compile are instead pushed down to the database
+ * (jobs.pushdown) and run as UPDATEs over ranges of jobs.chunkSize ids, so no configuration
+ * leaves the database.
+ *
+ * Rows are written either with a JDBC batch of single row UPDATEs or, with the staging writer,
+ * loaded into a temporary table with multi-row INSERTs and applied with one UPDATE ... JOIN per
+ * chunk. The writer is set with jobs.writer and can be overridden per step, for example with
+ * jobs.UpdateJobConfiguration.writer.
+ *
+ * Conversions go through a cache of jobs.cacheSize results keyed by content hash, so identical
+ * configurations are converted once.
+ */
+class JobConfigMigrator implements AutoCloseable {
+  private static final Logger LOGGER = LogManager.getLogger(JobConfigMigrator.class);
+  
+  static final String CHANGED = "changed";
+  static final String UNCHANGED = "unchanged";
+  static final String UPDATES = "updates";
+  static final String ROWS_PER_SECOND = "rowsPerSecond";
+  static final String CACHE_HITS = "cacheHits";
+  static final String CACHE_MISSES = "cacheMisses";
+  static final String CACHE_HIT_RATE = "cacheHitRate%";
+  
+  static final String BATCH_WRITER = "batch";
+  static final String STAGING_WRITER = "staging";
+  
+  private static final String GET_JOB_CONFIGURATIONS_CHUNK = "SELECT id, json_config FROM jobs WHERE id > ? " +
+      "ORDER BY id LIMIT ?";
+  private static final String UPDATE_SPECIFIC_JOB_JSON_CONFIG = "UPDATE jobs SET json_config = ? WHERE id = ?";
+  private static final String GET_JOB_ID_RANGE = "SELECT MIN(id), MAX(id) FROM jobs";
+  // NDB, the default engine of MySQL Cluster, has no temporary tables
+  private static final String CREATE_STAGING_TABLE = "CREATE TEMPORARY TABLE IF NOT EXISTS expat_jobs_staging " +
+      "(id INT NOT NULL PRIMARY KEY, json_config LONGTEXT NOT NULL) ENGINE=InnoDB";
+  private static final String INSERT_STAGING = "INSERT INTO expat_jobs_staging (id, json_config) VALUES ";
+  private static final String UPDATE_FROM_STAGING = "UPDATE jobs j JOIN expat_jobs_staging s ON j.id = s.id " +
+      "SET j.json_config = s.json_config";
+  private static final String CLEAR_STAGING_TABLE = "DELETE FROM expat_jobs_staging";
+  private static final String DROP_STAGING_TABLE = "DROP TEMPORARY TABLE IF EXISTS expat_jobs_staging";
+  // Rows per multi-row INSERT into the staging table, keeps statements well below max_allowed_packet
+  private static final int STAGING_INSERT_ROWS = 100;
+  
+  private final Connection readConnection;
+  private final Connection writeConnection;
+  private final int chunkSize;
+  private final int workers;
+  private final boolean pushdown;
+  private final String writer;
+  private final long cacheSize;
+  private final StepMetrics metrics;
+  
+  JobConfigMigrator(String step, StepMetrics metrics) throws ConfigurationException, SQLException {
+    Configuration config = ConfigurationBuilder.getConfiguration();
+    this.chunkSize = Math.max(1, config.getInt(ExpatConf.JOBS_CHUNK_SIZE, ExpatConf.JOBS_CHUNK_SIZE_DEFAULT));
+    this.workers = config.getInt(ExpatConf.JOBS_WORKERS, Runtime.getRuntime().availableProcessors());
+    this.pushdown = config.getBoolean(ExpatConf.JOBS_PUSHDOWN, ExpatConf.JOBS_PUSHDOWN_DEFAULT);
+    this.writer = config.getString(String.format(ExpatConf.JOBS_STEP_WRITER_FORMAT, step),
+        config.getString(ExpatConf.JOBS_WRITER, BATCH_WRITER));
+    this.cacheSize = config.getLong(ExpatConf.JOBS_CACHE_SIZE, ExpatConf.JOBS_CACHE_SIZE_DEFAULT);
+    if (!BATCH_WRITER.equals(writer) && !STAGING_WRITER.equals(writer)) {
+      throw new ConfigurationException("Unknown job configuration writer " + writer + " for " + step
+          + ", expected " + BATCH_WRITER + " or " + STAGING_WRITER);
+    }
+    this.metrics = metrics;
+    this.readConnection = DbConnectionFactory.getConnection();
+    try {
+      this.writeConnection = DbConnectionFactory.getConnection();
+    } catch (SQLException ex) {
+      readConnection.close();
+      throw ex;
+    }
+  }
+  
+  void migrate(JobConfigTransform transform) throws SQLException {
+    if (pushdown && transform instanceof JobConfigRules) {
+      List<JobConfigRules.SqlUpdate> updates = ((JobConfigRules) transform).toSql();
+      if (updates != null) {
+        migrateInDatabase(updates);
+        return;
+      }
+      LOGGER.info("Job configuration rules cannot be pushed down to the database, converting them in Expat");
+    }
+    CachingJobConfigTransform cache = cacheSize > 0 ? new CachingJobConfigTransform(transform, cacheSize) : null;
+    JobConfigTransform jobTransform = cache != null ? cache : transform;
+    boolean autoCommit = writeConnection.getAutoCommit();
+    LOGGER.info("Writing job configurations with the " + writer + " writer");
+    try (JobConfigWriter jobWriter = STAGING_WRITER.equals(writer) ? new StagingWriter() : new BatchWriter()) {
+      writeConnection.setAutoCommit(false);
+      Pipeline<JobConfig, JobConfig> pipeline = new Pipeline<>("JobConfigMigrator", workers, 1, chunkSize);
+      pipeline.run(this::readJobs, job -> convert(job, jobTransform), jobWriter);
+      LOGGER.info("Job configurations updated: " + metrics.get(CHANGED) + ", unchanged: " + metrics.get(UNCHANGED)
+          + ", " + metrics.get(ROWS_PER_SECOND) + " rows/s");
+      if (cache != null) {
+        CacheStats stats = cache.stats();
+        metrics.set(CACHE_HITS, stats.hitCount());
+        metrics.set(CACHE_MISSES, stats.missCount());
+        metrics.set(CACHE_HIT_RATE, Math.round(stats.hitRate() * 100));
+        LOGGER.info("Job configuration cache hits: " + stats.hitCount() + ", misses: " + stats.missCount()
+            + ", hit rate: " + String.format("%.1f%%", stats.hitRate() * 100));
+      }
+    } catch (ExecutionException ex) {
+      writeConnection.rollback();
+      Throwable cause = ex.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new SQLException("Could not migrate job configurations", cause);
+    } catch (InterruptedException ex) {
+      writeConnection.rollback();
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while migrating job configurations", ex);
+    } finally {
+      writeConnection.setAutoCommit(autoCommit);
+    }
+  }
+  
+  private void migrateInDatabase(List<JobConfigRules.SqlUpdate> updates) throws SQLException {
+    long minId;
+    long maxId;
+    try (Statement stmt = writeConnection.createStatement();
+         ResultSet rs = stmt.executeQuery(GET_JOB_ID_RANGE)) {
+      rs.next();
+      minId = rs.getLong(1);
+      maxId = rs.getLong(2);
+      if (rs.wasNull()) {
+        LOGGER.info("There are no jobs to migrate");
+        return;
+      }
+    }
+    
+    List<PreparedStatement> statements = new ArrayList<>(updates.size());
+    boolean autoCommit = writeConnection.getAutoCommit();
+    try {
+      for (JobConfigRules.SqlUpdate update : updates) {
+        statements.add(writeConnection.prepareStatement("UPDATE jobs SET json_config = " + update.expression
+            + " WHERE id >= ? AND id < ? AND json_config IS NOT NULL AND " + update.condition));
+      }
+      writeConnection.setAutoCommit(false);
+      long started = System.nanoTime();
+      for (long from = minId; from <= maxId; from += chunkSize) {
+        for (int i = 0; i < updates.size(); i++) {
+          JobConfigRules.SqlUpdate update = updates.get(i);
+          PreparedStatement stmt = statements.get(i);
+          int param = 1;
+          for (String value : update.expressionParams) {
+            stmt.setString(param++, value);
+          }
+          stmt.setLong(param++, from);
+          stmt.setLong(param++, from + chunkSize);
+          for (String value : update.conditionParams) {
+            stmt.setString(param++, value);
+          }
+          metrics.add(UPDATES, stmt.executeUpdate());
+        }
+        writeConnection.commit();
+        long elapsed = System.nanoTime() - started;
+        long rowsPerSecond = elapsed > 0 ? metrics.get(UPDATES) * 1_000_000_000L / elapsed : metrics.get(UPDATES);
+        metrics.set(ROWS_PER_SECOND, rowsPerSecond);
+        LOGGER.info("Updated job configurations in the database up to JobID: " + Math.min(maxId, from + chunkSize - 1)
+            + ", " + metrics.get(UPDATES) + " row updates so far (" + rowsPerSecond + " rows/s)");
+      }
+    } catch (SQLException ex) {
+      writeConnection.rollback();
+      throw ex;
+    } finally {
+      for (PreparedStatement stmt : statements) {
+        stmt.close();
+      }
+      writeConnection.setAutoCommit(autoCommit);
+    }
+  }
+  
+  private void readJobs(Pipeline.Emitter<JobConfig> emitter) throws SQLException, InterruptedException {
+    int lastId = Integer.MIN_VALUE;
+    try (PreparedStatement selectStmt = readConnection.prepareStatement(GET_JOB_CONFIGURATIONS_CHUNK)) {
+      int read;
+      do {
+        read = 0;
+        selectStmt.setInt(1, lastId);
+        selectStmt.setInt(2, chunkSize);
+        try (ResultSet rs = selectStmt.executeQuery()) {
+          while (rs.next()) {
+            lastId = rs.getInt(1);
+            emitter.emit(new JobConfig(lastId, rs.getString(2)));
+            read++;
+          }
+        }
+      } while (read == chunkSize);
+    }
+  }
+  
+  private JobConfig convert(JobConfig job, JobConfigTransform transform) {
+    if (job.config == null) {
+      LOGGER.warn("JobID: " + job.id + " has no configuration, skipping it");
+      return null;
+    }
+    LOGGER.debug("Trying to migrate JobID: " + job.id);
+    String config = transform.transform(job.config);
+    if (config == null || config.equals(job.config)) {
+      metrics.increment(StepMetrics.PROCESSED);
+      metrics.increment(UNCHANGED);
+      return null;
+    }
+    return new JobConfig(job.id, config);
+  }
+  
+  @Override
+  public void close() {
+    try {
+      readConnection.close();
+      writeConnection.close();
+    } catch (SQLException ex) {
+      // Nothing to do here.
+    }
+  }
+  
+  /**
+   * Collects converted rows and writes them a chunk at a time, one transaction per chunk
+   */
+  private abstract class JobConfigWriter implements Pipeline.Writer<JobConfig>, AutoCloseable {
+    private final List<JobConfig> chunk = new ArrayList<>(chunkSize);
+    private long started = 0;
+    private long written = 0;
+    
+    @Override
+    public void write(JobConfig job) throws SQLException {
+      if (started == 0) {
+        started = System.nanoTime();
+      }
+      chunk.add(job);
+      if (chunk.size() == chunkSize) {
+        commit();
+      }
+    }
+    
+    @Override
+    public void finish() throws SQLException {
+      if (!chunk.isEmpty()) {
+        commit();
+      }
+    }
+    
+    abstract void writeChunk(List<JobConfig> chunk) throws SQLException;
+    
+    @Override
+    public abstract void close() throws SQLException;
+    
+    private void commit() throws SQLException {
+      writeChunk(chunk);
+      writeConnection.commit();
+      int lastId = 0;
+      for (JobConfig job : chunk) {
+        lastId = Math.max(lastId, job.id);
+      }
+      metrics.add(StepMetrics.PROCESSED, chunk.size());
+      long changed = metrics.add(CHANGED, chunk.size());
+      written += chunk.size();
+      chunk.clear();
+      long elapsed = System.nanoTime() - started;
+      long rowsPerSecond = elapsed > 0 ? written * 1_000_000_000L / elapsed : written;
+      metrics.set(ROWS_PER_SECOND, rowsPerSecond);
+      LOGGER.info("Updated " + changed + " jobs so far (" + metrics.get(UNCHANGED) + " unchanged, " + rowsPerSecond
+          + " rows/s), last committed chunk reached JobID: " + lastId);
+    }
+  }
+  
+  private final class BatchWriter extends JobConfigWriter {
+    private final PreparedStatement updateStmt;
+    
+    private BatchWriter() throws SQLException {
+      updateStmt = writeConnection.prepareStatement(UPDATE_SPECIFIC_JOB_JSON_CONFIG);
+    }
+    
+    @Override
+    void writeChunk(List<JobConfig> chunk) throws SQLException {
+      for (JobConfig job : chunk) {
+        updateStmt.setString(1, job.config);
+        updateStmt.setInt(2, job.id);
+        updateStmt.addBatch();
+      }
+      updateStmt.executeBatch();
+    }
+    
+    @Override
+    public void close() throws SQLException {
+      updateStmt.close();
+    }
+  }
+  
+  private final class StagingWriter extends JobConfigWriter {
+    private final Statement stmt;
+    private PreparedStatement insertStmt;
+    
+    private StagingWriter() throws SQLException {
+      stmt = writeConnection.createStatement();
+      stmt.executeUpdate(DROP_STAGING_TABLE);
+      stmt.executeUpdate(CREATE_STAGING_TABLE);
+    }
+    
+    @Override
+    void writeChunk(List<JobConfig> chunk) throws SQLException {
+      for (int from = 0; from < chunk.size(); from += STAGING_INSERT_ROWS) {
+        int rows = Math.min(STAGING_INSERT_ROWS, chunk.size() - from);
+        if (rows == STAGING_INSERT_ROWS) {
+          if (insertStmt == null) {
+            insertStmt = prepareInsert(STAGING_INSERT_ROWS);
+          }
+          insert(insertStmt, chunk, from, rows);
+        } else {
+          try (PreparedStatement lastStmt = prepareInsert(rows)) {
+            insert(lastStmt, chunk, from, rows);
+          }
+        }
+      }
+      stmt.executeUpdate(UPDATE_FROM_STAGING);
+      stmt.executeUpdate(CLEAR_STAGING_TABLE);
+    }
+    
+    private PreparedStatement prepareInsert(int rows) throws SQLException {
+      StringBuilder sql = new StringBuilder(INSERT_STAGING);
+      for (int i = 0; i < rows; i++) {
+        sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+      }
+      return writeConnection.prepareStatement(sql.toString());
+    }
+    
+    private void insert(PreparedStatement insert, List<JobConfig> chunk, int from, int rows) throws SQLException {
+      int param = 1;
+      for (int i = from; i < from + rows; i++) {
+        insert.setInt(param++, chunk.get(i).id);
+        insert.setString(param++, chunk.get(i).config);
+      }
+      insert.executeUpdate();
+    }
+    
+    @Override
+    public void close() throws SQLException {
+      try {
+        if (insertStmt != null) {
+          insertStmt.close();
+        }
+        stmt.executeUpdate(DROP_STAGING_TABLE);
+      } finally {
+        stmt.close();
+      }
+    }
+  }
+  
+  private static final class JobConfig {
+    private final int id;
+    private final String config;
+    
+    private JobConfig(int id, String config) {
+      this.id = id;
+      this.config = config;
+    }
+  }
+}
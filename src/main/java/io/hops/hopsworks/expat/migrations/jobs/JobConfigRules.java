@@ -0,0 +1,590 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.jobs;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of rules that rewrite a job configuration, compiled once and applied to every row.
+ *
+ * Every rule knows its inverse, so the rollback of a migration is derived with {@link #inverse()}
+ * instead of being written a second time. Rules are applied in declaration order and the inverse
+ * applies the inverted rules in the reverse order. Top level members are edited through
+ * {@link JsonRewriter}, nested objects are only parsed when a rule descends into them.
+ *
+ * Rules that only touch top level keys can also be compiled with {@link #toSql()} into UPDATE
+ * statements that the database runs with its JSON functions.
+ */
+final class JobConfigRules implements JobConfigTransform {
+  
+  private final String guardKey;
+  private final Set<String> guardValues;
+  private final Rule[] rules;
+  
+  private JobConfigRules(String guardKey, Set<String> guardValues, Rule[] rules) {
+    this.guardKey = guardKey;
+    this.guardValues = guardValues;
+    this.rules = rules;
+  }
+  
+  static Builder builder() {
+    return new Builder();
+  }
+  
+  /**
+   * @return the configuration with the rules applied or the input itself if the guard did not match
+   */
+  @Override
+  public String transform(String jsonConfig) {
+    JsonRewriter config = JsonRewriter.parse(jsonConfig);
+    if (guardKey != null) {
+      if (!config.has(guardKey) || !guardValues.contains(String.valueOf(config.get(guardKey)))) {
+        return jsonConfig;
+      }
+    }
+    Members members = new RewriterMembers(config);
+    for (Rule rule : rules) {
+      rule.apply(members);
+    }
+    return config.toString();
+  }
+  
+  /**
+   * The rules that undo this set. The guard follows the renames of its key.
+   */
+  JobConfigRules inverse() {
+    Rule[] inverted = invert(rules);
+    String invertedGuardKey = guardKey;
+    for (Rule rule : rules) {
+      invertedGuardKey = rule.renamedKey(invertedGuardKey);
+    }
+    return new JobConfigRules(invertedGuardKey, guardValues, inverted);
+  }
+  
+  /**
+   * Compile the rules into one UPDATE per rule, in order. Every update is guarded so that it only
+   * matches rows it changes.
+   *
+   * @return the updates or null if some rule cannot be expressed in SQL
+   */
+  List<SqlUpdate> toSql() {
+    List<SqlUpdate> updates = new ArrayList<>(rules.length);
+    String currentGuardKey = guardKey;
+    for (Rule rule : rules) {
+      SqlUpdate update = rule.toSql();
+      if (update == null) {
+        return null;
+      }
+      if (currentGuardKey != null) {
+        StringBuilder condition = new StringBuilder(update.condition)
+            .append(" AND JSON_UNQUOTE(JSON_EXTRACT(json_config, ?)) IN (");
+        List<String> conditionParams = new ArrayList<>(update.conditionParams);
+        conditionParams.add(path(currentGuardKey));
+        boolean first = true;
+        for (String value : guardValues) {
+          condition.append(first ? "?" : ", ?");
+          conditionParams.add(value);
+          first = false;
+        }
+        update = new SqlUpdate(update.expression, update.expressionParams, condition.append(")").toString(),
+            conditionParams);
+      }
+      updates.add(update);
+      currentGuardKey = rule.renamedKey(currentGuardKey);
+    }
+    return updates;
+  }
+  
+  private static String path(String key) {
+    return "$." + JSONObject.quote(key);
+  }
+  
+  private static Rule[] invert(Rule[] rules) {
+    List<Rule> inverted = new ArrayList<>(rules.length);
+    for (int i = rules.length - 1; i >= 0; i--) {
+      Rule rule = rules[i].inverse();
+      if (rule != null) {
+        inverted.add(rule);
+      }
+    }
+    return inverted.toArray(new Rule[0]);
+  }
+  
+  static final class Builder {
+    private String guardKey;
+    private Set<String> guardValues = Collections.emptySet();
+    private final List<Rule> rules = new ArrayList<>();
+    
+    private Builder() {
+    }
+    
+    /**
+     * Apply the rules only to configurations where key has one of the values, leave the rest untouched
+     */
+    Builder when(String key, String... values) {
+      guardKey = key;
+      guardValues = new HashSet<>(Arrays.asList(values));
+      return this;
+    }
+    
+    Builder rename(String from, String to) {
+      rules.add(new Rename(from, to));
+      return this;
+    }
+    
+    /**
+     * Set key to value. The inverse removes the key.
+     */
+    Builder set(String key, Object value) {
+      rules.add(new Put(key, value));
+      return this;
+    }
+    
+    /**
+     * Remove key. The inverse puts it back with rollbackDefault, or does nothing if that is null.
+     */
+    Builder drop(String key, Object rollbackDefault) {
+      rules.add(new Drop(key, rollbackDefault));
+      return this;
+    }
+    
+    Builder drop(String key) {
+      return drop(key, null);
+    }
+    
+    /**
+     * Rename an object and apply the nested rules to its members
+     */
+    Builder nested(String from, String to, Builder nested) {
+      rules.add(new Nested(from, to, nested.rules.toArray(new Rule[0])));
+      return this;
+    }
+    
+    /**
+     * Turn an object of objects into an array of objects. Only the fields listed as
+     * old/new name pairs are kept. The inverse keys the entries by keyField again.
+     */
+    Builder mapToArray(String from, String to, String keyField, String... fieldPairs) {
+      rules.add(new MapToArray(from, to, new FieldMapping(keyField, fieldPairs)));
+      return this;
+    }
+    
+    /**
+     * Turn an array of objects into an object of objects keyed by the keyField of every entry.
+     * Only the fields listed as old/new name pairs are kept.
+     */
+    Builder arrayToMap(String from, String to, String keyField, String... fieldPairs) {
+      rules.add(new ArrayToMap(from, to, new FieldMapping(keyField, fieldPairs)));
+      return this;
+    }
+    
+    JobConfigRules build() {
+      return new JobConfigRules(guardKey, guardValues, rules.toArray(new Rule[0]));
+    }
+  }
+  
+  /**
+   * The operations rules need, over either the top level document or a nested JSONObject
+   */
+  private interface Members {
+    boolean has(String key);
+    
+    Object get(String key);
+    
+    void put(String key, Object value);
+    
+    void remove(String key);
+    
+    void rename(String from, String to);
+  }
+  
+  private static final class RewriterMembers implements Members {
+    private final JsonRewriter config;
+    
+    private RewriterMembers(JsonRewriter config) {
+      this.config = config;
+    }
+    
+    @Override
+    public boolean has(String key) {
+      return config.has(key);
+    }
+    
+    @Override
+    public Object get(String key) {
+      return config.get(key);
+    }
+    
+    @Override
+    public void put(String key, Object value) {
+      config.put(key, value);
+    }
+    
+    @Override
+    public void remove(String key) {
+      config.remove(key);
+    }
+    
+    @Override
+    public void rename(String from, String to) {
+      config.rename(from, to);
+    }
+  }
+  
+  private static final class ObjectMembers implements Members {
+    private final JSONObject object;
+    
+    private ObjectMembers(JSONObject object) {
+      this.object = object;
+    }
+    
+    @Override
+    public boolean has(String key) {
+      return object.has(key);
+    }
+    
+    @Override
+    public Object get(String key) {
+      return object.get(key);
+    }
+    
+    @Override
+    public void put(String key, Object value) {
+      object.put(key, value);
+    }
+    
+    @Override
+    public void remove(String key) {
+      object.remove(key);
+    }
+    
+    @Override
+    public void rename(String from, String to) {
+      if (object.has(from)) {
+        Object value = object.remove(from);
+        object.put(to, value);
+      }
+    }
+  }
+  
+  private abstract static class Rule {
+    abstract void apply(Members members);
+    
+    /**
+     * @return the rule undoing this one, null if there is nothing to undo
+     */
+    abstract Rule inverse();
+    
+    String renamedKey(String key) {
+      return key;
+    }
+    
+    /**
+     * @return the update doing this rule on the json_config column, null if there is none
+     */
+    SqlUpdate toSql() {
+      return null;
+    }
+  }
+  
+  private static class Rename extends Rule {
+    final String from;
+    final String to;
+    
+    Rename(String from, String to) {
+      this.from = from;
+      this.to = to;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.rename(from, to);
+    }
+    
+    @Override
+    Rule inverse() {
+      return new Rename(to, from);
+    }
+    
+    @Override
+    String renamedKey(String key) {
+      return from.equals(key) ? to : key;
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      return new SqlUpdate("JSON_SET(JSON_REMOVE(json_config, ?), ?, JSON_EXTRACT(json_config, ?))",
+          Arrays.asList(path(from), path(to), path(from)),
+          "JSON_CONTAINS_PATH(json_config, 'one', ?)", Arrays.asList(path(from)));
+    }
+  }
+  
+  private static final class Put extends Rule {
+    private final String key;
+    private final Object value;
+    
+    Put(String key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.put(key, value);
+    }
+    
+    @Override
+    Rule inverse() {
+      return new Drop(key, value);
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      String json = JSONObject.valueToString(value);
+      return new SqlUpdate("JSON_SET(json_config, ?, CAST(? AS JSON))", Arrays.asList(path(key), json),
+          "NOT (JSON_CONTAINS_PATH(json_config, 'one', ?) AND JSON_EXTRACT(json_config, ?) = CAST(? AS JSON))",
+          Arrays.asList(path(key), path(key), json));
+    }
+  }
+  
+  private static final class Drop extends Rule {
+    private final String key;
+    private final Object rollbackDefault;
+    
+    Drop(String key, Object rollbackDefault) {
+      this.key = key;
+      this.rollbackDefault = rollbackDefault;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.remove(key);
+    }
+    
+    @Override
+    Rule inverse() {
+      return rollbackDefault == null ? null : new Put(key, rollbackDefault);
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      return new SqlUpdate("JSON_REMOVE(json_config, ?)", Arrays.asList(path(key)),
+          "JSON_CONTAINS_PATH(json_config, 'one', ?)", Arrays.asList(path(key)));
+    }
+  }
+  
+  private static final class Nested extends Rename {
+    private final Rule[] rules;
+    
+    Nested(String from, String to, Rule[] rules) {
+      super(from, to);
+      this.rules = rules;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.rename(from, to);
+      if (!members.has(to)) {
+        return;
+      }
+      Object value = members.get(to);
+      if (value instanceof JSONObject) {
+        Members nested = new ObjectMembers((JSONObject) value);
+        for (Rule rule : rules) {
+          rule.apply(nested);
+        }
+        members.put(to, value);
+      }
+    }
+    
+    @Override
+    Rule inverse() {
+      return new Nested(to, from, invert(rules));
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      return null;
+    }
+  }
+  
+  private static final class FieldMapping {
+    private final String keyField;
+    private final String[] from;
+    private final String[] to;
+    
+    FieldMapping(String keyField, String... pairs) {
+      if (pairs.length % 2 != 0) {
+        throw new IllegalArgumentException("Fields must be given as old/new name pairs");
+      }
+      this.keyField = keyField;
+      from = new String[pairs.length / 2];
+      to = new String[pairs.length / 2];
+      for (int i = 0; i < from.length; i++) {
+        from[i] = pairs[2 * i];
+        to[i] = pairs[2 * i + 1];
+      }
+    }
+    
+    private FieldMapping(String keyField, String[] from, String[] to) {
+      this.keyField = keyField;
+      this.from = from;
+      this.to = to;
+    }
+    
+    FieldMapping inverse() {
+      String invertedKeyField = keyField;
+      for (int i = 0; i < from.length; i++) {
+        if (from[i].equals(keyField)) {
+          invertedKeyField = to[i];
+        }
+      }
+      return new FieldMapping(invertedKeyField, to, from);
+    }
+    
+    JSONObject map(JSONObject entry) {
+      JSONObject mapped = new JSONObject();
+      for (int i = 0; i < from.length; i++) {
+        if (entry.has(from[i])) {
+          mapped.put(to[i], entry.get(from[i]));
+        } else if (entry.has(to[i])) {
+          mapped.put(to[i], entry.get(to[i]));
+        }
+      }
+      return mapped;
+    }
+  }
+  
+  private static final class MapToArray extends Rename {
+    private final FieldMapping fields;
+    
+    MapToArray(String from, String to, FieldMapping fields) {
+      super(from, to);
+      this.fields = fields;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.rename(from, to);
+      if (!members.has(to)) {
+        return;
+      }
+      Object value = members.get(to);
+      JSONArray array = new JSONArray();
+      if (value instanceof JSONObject) {
+        JSONObject map = (JSONObject) value;
+        for (String key : map.keySet()) {
+          array.put(fields.map(map.getJSONObject(key)));
+        }
+      } else if (value instanceof JSONArray) {
+        // Already an array, only the fields need mapping
+        JSONArray entries = (JSONArray) value;
+        for (int i = 0; i < entries.length(); i++) {
+          array.put(fields.map(entries.getJSONObject(i)));
+        }
+      } else {
+        return;
+      }
+      members.put(to, array);
+    }
+    
+    @Override
+    Rule inverse() {
+      return new ArrayToMap(to, from, fields.inverse());
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      return null;
+    }
+  }
+  
+  private static final class ArrayToMap extends Rename {
+    private final FieldMapping fields;
+    
+    ArrayToMap(String from, String to, FieldMapping fields) {
+      super(from, to);
+      this.fields = fields;
+    }
+    
+    @Override
+    void apply(Members members) {
+      members.rename(from, to);
+      if (!members.has(to)) {
+        return;
+      }
+      Object value = members.get(to);
+      JSONObject map = new JSONObject();
+      if (value instanceof JSONArray) {
+        JSONArray entries = (JSONArray) value;
+        for (int i = 0; i < entries.length(); i++) {
+          JSONObject entry = entries.getJSONObject(i);
+          Object key = entry.opt(fields.keyField);
+          map.put(key == null ? String.valueOf(i) : String.valueOf(key), fields.map(entry));
+        }
+      } else if (value instanceof JSONObject) {
+        // Already a map, only the fields need mapping
+        JSONObject entries = (JSONObject) value;
+        for (String key : entries.keySet()) {
+          map.put(key, fields.map(entries.getJSONObject(key)));
+        }
+      } else {
+        return;
+      }
+      members.put(to, map);
+    }
+    
+    @Override
+    Rule inverse() {
+      return new MapToArray(to, from, fields.inverse());
+    }
+    
+    @Override
+    SqlUpdate toSql() {
+      return null;
+    }
+  }
+  
+  /**
+   * The new value of json_config and the condition a row must meet to be updated, each with the
+   * parameters of its placeholders
+   */
+  static final class SqlUpdate {
+    final String expression;
+    final List<String> expressionParams;
+    final String condition;
+    final List<String> conditionParams;
+    
+    private SqlUpdate(String expression, List<String> expressionParams, String condition,
+        List<String> conditionParams) {
+      this.expression = expression;
+      this.expressionParams = expressionParams;
+      this.condition = condition;
+      this.conditionParams = conditionParams;
+    }
+  }
+}
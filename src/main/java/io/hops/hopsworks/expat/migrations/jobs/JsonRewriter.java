@@ -0,0 +1,431 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.hops.hopsworks.expat.migrations.jobs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Edits the top level members of a JSON object without building a tree of the document.
+ *
+ * The input is tokenized once to find where every top level key and value starts and ends.
+ * Renames, removals and insertions are recorded against those positions and {@link #toString()}
+ * copies the untouched values verbatim from the input. Only values that are read with
+ * {@link #get}, {@link #getJSONObject} or {@link #getJSONArray} are parsed, so the work done is
+ * proportional to the edits rather than to the size of the document. If nothing was changed the
+ * input string itself is returned.
+ *
+ * Tokenizing checks strings, bare literals and the nesting of brackets but not the placement of
+ * colons and commas inside nested values. Input it rejects, including duplicated top level keys,
+ * goes through org.json instead.
+ */
+final class JsonRewriter {
+  private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+  
+  private final String json;
+  private int size;
+  private int[] keyStart;
+  private int[] keyEnd;
+  private int[] valueStart;
+  private int[] valueEnd;
+  // Edits, allocated lazily
+  private String[] newKeys;
+  private String[] newValues;
+  private boolean[] removed;
+  private List<String> addedKeys;
+  private List<String> addedValues;
+  // Key to member position
+  private Map<String, Integer> index;
+  private boolean modified = false;
+  
+  private JsonRewriter(String json, int capacity) {
+    this.json = json;
+    keyStart = new int[capacity];
+    keyEnd = new int[capacity];
+    valueStart = new int[capacity];
+    valueEnd = new int[capacity];
+  }
+  
+  static JsonRewriter parse(String json) {
+    try {
+      return tokenize(json);
+    } catch (JSONException ex) {
+      // Not strict JSON, let org.json deal with it and work on its output
+      return tokenize(new JSONObject(json).toString());
+    }
+  }
+  
+  boolean has(String key) {
+    return indexOf(key) >= 0 || addedIndexOf(key) >= 0;
+  }
+  
+  /**
+   * @return the value of the key, as {@link JSONObject#get} would return it
+   */
+  Object get(String key) {
+    String raw = rawValue(key);
+    if (raw.charAt(0) == '"' && raw.indexOf('\\') < 0) {
+      return raw.substring(1, raw.length() - 1);
+    }
+    return new JSONTokener(raw).nextValue();
+  }
+  
+  String getString(String key) {
+    Object value = get(key);
+    if (value instanceof String) {
+      return (String) value;
+    }
+    throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not a string.");
+  }
+  
+  JSONObject getJSONObject(String key) {
+    return new JSONObject(rawValue(key));
+  }
+  
+  JSONArray getJSONArray(String key) {
+    return new JSONArray(rawValue(key));
+  }
+  
+  /**
+   * Sets the value of the key, replacing the previous one. A null value removes the key. Setting
+   * a key to the value it already has is not an edit.
+   */
+  void put(String key, Object value) {
+    if (value == null) {
+      remove(key);
+      return;
+    }
+    String serialized = JSONObject.valueToString(value);
+    int idx = indexOf(key);
+    if (idx >= 0) {
+      if (sameValue(idx, serialized)) {
+        return;
+      }
+      edits();
+      newValues[idx] = serialized;
+    } else {
+      int added = addedIndexOf(key);
+      if (added >= 0) {
+        addedValues.set(added, serialized);
+      } else {
+        edits();
+        addedKeys.add(key);
+        addedValues.add(serialized);
+      }
+    }
+    modified = true;
+  }
+  
+  void remove(String key) {
+    int idx = indexOf(key);
+    if (idx >= 0) {
+      edits();
+      removed[idx] = true;
+      index.remove(key);
+      modified = true;
+    } else {
+      int added = addedIndexOf(key);
+      if (added >= 0) {
+        addedKeys.remove(added);
+        addedValues.remove(added);
+        modified = true;
+      }
+    }
+  }
+  
+  /**
+   * Moves the value of oldKey to newKey, if oldKey exists. A previous value of newKey is dropped.
+   */
+  void rename(String oldKey, String newKey) {
+    if (oldKey.equals(newKey)) {
+      return;
+    }
+    int idx = indexOf(oldKey);
+    if (idx < 0) {
+      int added = addedIndexOf(oldKey);
+      if (added >= 0) {
+        String value = addedValues.get(added);
+        remove(oldKey);
+        remove(newKey);
+        addedKeys.add(newKey);
+        addedValues.add(value);
+      }
+      return;
+    }
+    remove(newKey);
+    edits();
+    newKeys[idx] = newKey;
+    index.remove(oldKey);
+    index.put(newKey, idx);
+    modified = true;
+  }
+  
+  boolean isModified() {
+    return modified;
+  }
+  
+  @Override
+  public String toString() {
+    if (!modified) {
+      return json;
+    }
+    StringBuilder sb = new StringBuilder(json.length() + 64);
+    sb.append('{');
+    boolean first = true;
+    for (int i = 0; i < size; i++) {
+      if (removed[i]) {
+        continue;
+      }
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      if (newKeys[i] != null) {
+        sb.append(JSONObject.quote(newKeys[i]));
+      } else {
+        sb.append(json, keyStart[i] - 1, keyEnd[i] + 1);
+      }
+      sb.append(':');
+      if (newValues[i] != null) {
+        sb.append(newValues[i]);
+      } else {
+        sb.append(json, valueStart[i], valueEnd[i]);
+      }
+    }
+    for (int i = 0; i < addedKeys.size(); i++) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      sb.append(JSONObject.quote(addedKeys.get(i))).append(':').append(addedValues.get(i));
+    }
+    return sb.append('}').toString();
+  }
+  
+  private String rawValue(String key) {
+    int idx = indexOf(key);
+    if (idx >= 0) {
+      if (newValues != null && newValues[idx] != null) {
+        return newValues[idx];
+      }
+      return json.substring(valueStart[idx], valueEnd[idx]);
+    }
+    int added = addedIndexOf(key);
+    if (added >= 0) {
+      return addedValues.get(added);
+    }
+    throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not found.");
+  }
+  
+  private boolean sameValue(int idx, String serialized) {
+    if (newValues != null && newValues[idx] != null) {
+      return newValues[idx].equals(serialized);
+    }
+    int length = valueEnd[idx] - valueStart[idx];
+    return length == serialized.length() && json.regionMatches(valueStart[idx], serialized, 0, length);
+  }
+  
+  private void edits() {
+    if (removed == null) {
+      newKeys = new String[size];
+      newValues = new String[size];
+      removed = new boolean[size];
+      addedKeys = new ArrayList<>(2);
+      addedValues = new ArrayList<>(2);
+    }
+  }
+  
+  private int indexOf(String key) {
+    Integer idx = index.get(key);
+    return idx == null ? -1 : idx;
+  }
+  
+  private int addedIndexOf(String key) {
+    return addedKeys == null ? -1 : addedKeys.indexOf(key);
+  }
+  
+  private String keyAt(int idx) {
+    int start = keyStart[idx];
+    int end = keyEnd[idx];
+    for (int i = start; i < end; i++) {
+      if (json.charAt(i) == '\\') {
+        // Escaped key, use the decoded form
+        return (String) new JSONTokener(json.substring(start - 1, end + 1)).nextValue();
+      }
+    }
+    return json.substring(start, end);
+  }
+  
+  private static JsonRewriter tokenize(String json) {
+    JsonRewriter doc = new JsonRewriter(json, 16);
+    int pos = skipWhitespace(json, 0);
+    expect(json, pos, '{');
+    pos = skipWhitespace(json, pos + 1);
+    if (pos < json.length() && json.charAt(pos) == '}') {
+      return doc.end(pos + 1);
+    }
+    while (true) {
+      expect(json, pos, '"');
+      int keyStart = pos + 1;
+      pos = skipString(json, pos);
+      int keyEnd = pos - 1;
+      pos = skipWhitespace(json, pos);
+      expect(json, pos, ':');
+      pos = skipWhitespace(json, pos + 1);
+      int valueStart = pos;
+      pos = skipValue(json, pos);
+      doc.addMember(keyStart, keyEnd, valueStart, pos);
+      pos = skipWhitespace(json, pos);
+      if (pos >= json.length()) {
+        throw new JSONException("Unterminated JSON object");
+      }
+      char c = json.charAt(pos);
+      if (c == '}') {
+        return doc.end(pos + 1);
+      }
+      expect(json, pos, ',');
+      pos = skipWhitespace(json, pos + 1);
+    }
+  }
+  
+  private JsonRewriter end(int pos) {
+    if (skipWhitespace(json, pos) != json.length()) {
+      throw new JSONException("Unexpected content after JSON object at " + pos);
+    }
+    index = new HashMap<>(size * 2);
+    for (int i = 0; i < size; i++) {
+      String key = keyAt(i);
+      if (index.put(key, i) != null) {
+        throw new JSONException("Duplicate key " + JSONObject.quote(key));
+      }
+    }
+    return this;
+  }
+  
+  private void addMember(int kStart, int kEnd, int vStart, int vEnd) {
+    if (size == keyStart.length) {
+      int capacity = size * 2;
+      keyStart = Arrays.copyOf(keyStart, capacity);
+      keyEnd = Arrays.copyOf(keyEnd, capacity);
+      valueStart = Arrays.copyOf(valueStart, capacity);
+      valueEnd = Arrays.copyOf(valueEnd, capacity);
+    }
+    keyStart[size] = kStart;
+    keyEnd[size] = kEnd;
+    valueStart[size] = vStart;
+    valueEnd[size] = vEnd;
+    size++;
+  }
+  
+  private static void expect(String json, int pos, char expected) {
+    if (pos >= json.length() || json.charAt(pos) != expected) {
+      throw new JSONException("Expected '" + expected + "' at " + pos);
+    }
+  }
+  
+  private static int skipWhitespace(String json, int pos) {
+    while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+  
+  /**
+   * @param pos position of the opening quote
+   * @return position after the closing quote
+   */
+  private static int skipString(String json, int pos) {
+    for (int i = pos + 1; i < json.length(); i++) {
+      char c = json.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i + 1;
+      }
+    }
+    throw new JSONException("Unterminated string at " + pos);
+  }
+  
+  private static int skipValue(String json, int pos) {
+    if (pos >= json.length()) {
+      throw new JSONException("Missing value at " + pos);
+    }
+    char c = json.charAt(pos);
+    if (c == '"') {
+      return skipString(json, pos);
+    }
+    if (c != '{' && c != '[') {
+      return skipLiteral(json, pos);
+    }
+    // Closing brackets expected, innermost last
+    StringBuilder open = new StringBuilder();
+    for (int i = pos; i < json.length(); i++) {
+      c = json.charAt(i);
+      if (c == '"') {
+        i = skipString(json, i) - 1;
+      } else if (c == '{' || c == '[') {
+        open.append(c == '{' ? '}' : ']');
+      } else if (c == '}' || c == ']') {
+        int last = open.length() - 1;
+        if (open.charAt(last) != c) {
+          throw new JSONException("Expected '" + open.charAt(last) + "' at " + i);
+        }
+        open.setLength(last);
+        if (last == 0) {
+          return i + 1;
+        }
+      } else if (c != ',' && c != ':' && !Character.isWhitespace(c)) {
+        i = skipLiteral(json, i) - 1;
+      }
+    }
+    throw new JSONException("Unterminated value at " + pos);
+  }
+  
+  /**
+   * @return position after the true, false, null or number at pos
+   */
+  private static int skipLiteral(String json, int pos) {
+    int end = pos;
+    while (end < json.length()) {
+      char c = json.charAt(end);
+      if (c == ',' || c == ':' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+        break;
+      }
+      end++;
+    }
+    if (end == pos) {
+      throw new JSONException("Missing value at " + pos);
+    }
+    int length = end - pos;
+    boolean keyword = length == 4 && (json.startsWith("true", pos) || json.startsWith("null", pos))
+        || length == 5 && json.startsWith("false", pos);
+    if (!keyword && !NUMBER.matcher(json).region(pos, end).matches()) {
+      throw new JSONException("Invalid value " + json.substring(pos, end) + " at " + pos);
+    }
+    return end;
+  }
+}
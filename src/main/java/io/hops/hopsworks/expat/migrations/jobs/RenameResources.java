@@ -1,10 +1,11 @@
 package io.hops.hopsworks.expat.migrations.jobs;
 
 import com.google.common.base.Strings;
-import io.hops.hopsworks.expat.db.DbConnectionFactory;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,57 +14,40 @@ import org.json.JSONObject;
 
 import java.sql.*;
 
-public class RenameResources implements MigrateStep {
+public class RenameResources implements MigrateStep, ReportingStep {
   private final static Logger LOGGER = LogManager.getLogger(RenameResources.class);
 
-  private final static String GET_ALL_JOB_CONFIGURATIONS = "SELECT id, json_config FROM jobs";
-  private final static String UPDATE_SPECIFIC_JOB_JSON_CONFIG = "UPDATE jobs SET json_config = ? WHERE id = ?";
-  protected Connection connection;
+  private final StepMetrics metrics = new StepMetrics();
 
-  private void setup() throws SQLException, ConfigurationException {
-    connection = DbConnectionFactory.getConnection();
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
+
+  private JobConfigMigrator setup() throws SQLException, ConfigurationException {
+    return new JobConfigMigrator(getClass().getSimpleName(), metrics);
   }
 
   @Override
   public void migrate() throws MigrationException {
     LOGGER.info("Starting jobConfig migration");
+    JobConfigMigrator migrator;
     try {
-      setup();
+      migrator = setup();
     } catch (SQLException | ConfigurationException ex) {
       String errorMsg = "Could not initialize database connection";
       LOGGER.error(errorMsg);
       throw new MigrationException(errorMsg, ex);
     }
 
-    Statement stmt = null;
-    PreparedStatement updateJSONConfigStmt = null;
     try {
-      connection.setAutoCommit(false);
-      stmt = connection.createStatement();
-      ResultSet allJobsResultSet = stmt.executeQuery(GET_ALL_JOB_CONFIGURATIONS);
-
-      updateJSONConfigStmt = connection.prepareStatement(UPDATE_SPECIFIC_JOB_JSON_CONFIG);
-      while (allJobsResultSet.next()) {
-        int id = allJobsResultSet.getInt(1);
-        String oldConfig = allJobsResultSet.getString(2);
-
-        LOGGER.info("Trying to migrate JobID: " + id);
-        String newConfig = convertJSON(oldConfig, true);
-        LOGGER.info("Successfully migrated JobID: " + id);
-
-        updateJSONConfigStmt.setString(1, newConfig);
-        updateJSONConfigStmt.setInt(2, id);
-        updateJSONConfigStmt.addBatch();
-      }
-      updateJSONConfigStmt.executeBatch();
-      connection.commit();
-      connection.setAutoCommit(true);
+      migrator.migrate(oldConfig -> convertJSON(oldConfig, true));
     } catch(SQLException ex) {
       String errorMsg = "Could not migrate job configurations";
       LOGGER.error(errorMsg);
       throw new MigrationException(errorMsg, ex);
     } finally {
-      closeConnections(stmt, updateJSONConfigStmt);
+      migrator.close();
     }
     LOGGER.info("Finished jobConfig migration");
   }
@@ -71,7 +55,7 @@ public class RenameResources implements MigrateStep {
   //This function converts an old jobConfig to the new format
   private String convertJSON(String oldConfig, boolean migrate) {
 
-    JSONObject config = new JSONObject(oldConfig);
+    JsonRewriter config = JsonRewriter.parse(oldConfig);
 
     if(migrate) {
 
@@ -88,24 +72,24 @@ public class RenameResources implements MigrateStep {
     return config.toString();
   }
 
-  private void removeKeyIfExists(JSONObject config, String key) {
+  private void removeKeyIfExists(JsonRewriter config, String key) {
     if(config.has(key)) {
       config.remove(key);
     }
   }
 
-  private void addKeyValue(JSONObject config, String key, Object value) {
+  private void addKeyValue(JsonRewriter config, String key, Object value) {
     config.put(key, value);
   }
 
-  private void migrateResources(JSONObject config) {
+  private void migrateResources(JsonRewriter config) {
     StringBuilder pyFiles = new StringBuilder();
     StringBuilder files = new StringBuilder();
     StringBuilder jars = new StringBuilder();
     StringBuilder archives = new StringBuilder();
 
     if(config.has("localResources")) {
-      JSONArray resources = (JSONArray) config.get("localResources");
+      JSONArray resources = config.getJSONArray("localResources");
       for (int i = 0; i < resources.length(); i++) {
         JSONObject topicObj = (JSONObject) resources.get(i);
         //These are needed for migration
@@ -131,12 +115,12 @@ public class RenameResources implements MigrateStep {
     }
   }
 
-  private void rollbackResources(JSONObject config) {
+  private void rollbackResources(JsonRewriter config) {
 
     JSONArray localResources = new JSONArray();
 
     if(config.has("spark.yarn.dist.jars")) {
-      String jars = ((String)config.get("spark.yarn.dist.jars")).trim();
+      String jars = config.getString("spark.yarn.dist.jars").trim();
       String[] jarArr = jars.split(",");
       for(String jar: jarArr) {
         if(Strings.isNullOrEmpty(jar) || jar.equals(","))
@@ -153,7 +137,7 @@ public class RenameResources implements MigrateStep {
     removeKeyIfExists(config,"spark.yarn.dist.jars");
 
     if(config.has("spark.yarn.dist.files")) {
-      String files = ((String)config.get("spark.yarn.dist.files")).trim();
+      String files = config.getString("spark.yarn.dist.files").trim();
       String[] filesArr = files.split(",");
       for(String file: filesArr) {
         if(Strings.isNullOrEmpty(file) || file.equals(","))
@@ -170,7 +154,7 @@ public class RenameResources implements MigrateStep {
     removeKeyIfExists(config,"spark.yarn.dist.files");
 
     if(config.has("spark.yarn.dist.archives")) {
-      String archives = ((String)config.get("spark.yarn.dist.archives")).trim();
+      String archives = config.getString("spark.yarn.dist.archives").trim();
       String[] archiveArr = archives.split(",");
       for(String archive: archiveArr) {
         if(Strings.isNullOrEmpty(archive) || archive.equals(","))
@@ -187,7 +171,7 @@ public class RenameResources implements MigrateStep {
     removeKeyIfExists(config,"spark.yarn.dist.archives");
 
     if(config.has("spark.yarn.dist.pyFiles")) {
-      String pyFiles = ((String)config.get("spark.yarn.dist.pyFiles")).trim();
+      String pyFiles = config.getString("spark.yarn.dist.pyFiles").trim();
       String[] pyFilesArr = pyFiles.split(",");
       for(String pyFile: pyFilesArr) {
         if(Strings.isNullOrEmpty(pyFile) || pyFile.equals(","))
@@ -209,58 +193,24 @@ public class RenameResources implements MigrateStep {
   @Override
   public void rollback() throws RollbackException {
     LOGGER.info("Starting jobConfig rollback");
+    JobConfigMigrator migrator;
     try {
-      setup();
+      migrator = setup();
     } catch (SQLException | ConfigurationException ex) {
       String errorMsg = "Could not initialize database connection";
       LOGGER.error(errorMsg);
       throw new RollbackException(errorMsg, ex);
     }
 
-    Statement stmt = null;
-    PreparedStatement updateJSONConfigStmt = null;
-
     try {
-      connection.setAutoCommit(false);
-      stmt = connection.createStatement();
-      ResultSet allJobsResultSet = stmt.executeQuery(GET_ALL_JOB_CONFIGURATIONS);
-
-      updateJSONConfigStmt = connection.prepareStatement(UPDATE_SPECIFIC_JOB_JSON_CONFIG);
-      while (allJobsResultSet.next()) {
-        int id = allJobsResultSet.getInt(1);
-        String oldConfig = allJobsResultSet.getString(2);
-
-        LOGGER.info("Trying to rollback JobID: " + id);
-        String newConfig = convertJSON(oldConfig, false);
-        LOGGER.info("Successfully rollbacked JobID: " + id);
-
-        updateJSONConfigStmt.setString(1, newConfig);
-        updateJSONConfigStmt.setInt(2, id);
-        updateJSONConfigStmt.addBatch();
-      }
-      updateJSONConfigStmt.executeBatch();
-      connection.commit();
-      connection.setAutoCommit(true);
+      migrator.migrate(oldConfig -> convertJSON(oldConfig, false));
     } catch(SQLException ex) {
       String errorMsg = "Could not migrate job configurations";
       LOGGER.error(errorMsg);
       throw new RollbackException(errorMsg, ex);
     } finally {
-      closeConnections(stmt, updateJSONConfigStmt);
-    }
-    LOGGER.info("Starting jobConfig rollback");
-  }
-
-  private void closeConnections(Statement stmt, PreparedStatement preparedStatement) {
-    try {
-      if(stmt != null) {
-        stmt.close();
-      }
-      if(preparedStatement != null) {
-        preparedStatement.close();
-      }
-    } catch(SQLException ex) {
-      //do nothing
+      migrator.close();
     }
+    LOGGER.info("Finished jobConfig rollback");
   }
 }
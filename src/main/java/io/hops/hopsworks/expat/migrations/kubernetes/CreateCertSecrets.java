@@ -27,10 +27,15 @@ import io.hops.hopsworks.common.util.HopsUtils;
 import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
 import io.hops.hopsworks.expat.configuration.ExpatConf;
 import io.hops.hopsworks.expat.db.DbConnectionFactory;
+import io.hops.hopsworks.expat.executor.Pipeline;
 import io.hops.hopsworks.expat.kubernetes.KubernetesClientFactory;
+import io.hops.hopsworks.expat.migrations.DependsOn;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import io.hops.hopsworks.expat.migrations.VersionedStep;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
@@ -45,164 +50,249 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import static io.hops.hopsworks.common.util.Settings.CERT_PASS_SUFFIX;
 import static io.hops.hopsworks.common.util.Settings.KEYSTORE_SUFFIX;
 import static io.hops.hopsworks.common.util.Settings.TRUSTSTORE_SUFFIX;
 
-public class CreateCertSecrets implements MigrateStep {
+// Secrets are created in the project namespaces
+@DependsOn(CreateNS.class)
+public class CreateCertSecrets implements MigrateStep, ReportingStep, VersionedStep {
 
   private static final Logger LOGGER = LogManager.getLogger(CreateCertSecrets.class);
+  static final String STEP = "CreateCertSecrets";
+
+  private final StepMetrics metrics = new StepMetrics();
+  private String version;
+
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public void setVersion(String version) {
+    this.version = version;
+  }
 
   @Override
   public void migrate() throws MigrationException {
+    KubernetesClientFactory.Usage usage = KubernetesClientFactory.startUsage();
+    try {
+      createSecrets();
+    } finally {
+      usage.record(metrics);
+    }
+  }
+
+  private void createSecrets() throws MigrationException {
     KubernetesClient client;
+    KubernetesBatch<ProjectUser> batch;
     try {
       client = KubernetesClientFactory.getClient();
+      batch = KubernetesBatch.fromConfig("CreateCertSecrets", metrics);
     } catch (ConfigurationException e) {
       throw new MigrationException("Cannot read the configuration", e);
     }
 
     String masterPwd = null;
+    boolean reconcile;
+    int pageSize;
     try {
       Configuration config = ConfigurationBuilder.getConfiguration();
       Path masterPwdPath = Paths.get(config.getString(ExpatConf.MASTER_PWD_FILE_KEY));
       masterPwd = Files.toString(masterPwdPath.toFile(), Charset.defaultCharset());
+      reconcile = config.getBoolean(ExpatConf.KUBE_RECONCILE, false);
+      pageSize = config.getInt(ExpatConf.KUBE_LIST_PAGE_SIZE, ExpatConf.KUBE_LIST_PAGE_SIZE_DEFAULT);
     } catch (ConfigurationException | IOException e) {
       throw new MigrationException("Could not read the master password", e);
     }
 
-    Connection dbConn;
-    Statement stmt = null;
-    ResultSet resultSet = null;
+    Map<String, Secret> existing = Collections.emptyMap();
+    if (reconcile) {
+      try {
+        existing = ManagedResources.listSecrets(client,
+            ManagedResources.selector(ManagedResources.labels(STEP, null, null)), pageSize);
+      } catch (IOException | KubernetesClientException e) {
+        throw new MigrationException("Cannot list the Secrets managed by Expat", e);
+      }
+    }
+    Set<String> desired = ConcurrentHashMap.newKeySet();
+
+    // Rows are read on one thread, decrypted and encoded on all cores and uploaded by the batch workers
+    String password = masterPwd;
+    Map<String, Secret> managed = existing;
     try {
-      dbConn = DbConnectionFactory.getConnection();
-      stmt = dbConn.createStatement();
-      resultSet = stmt.executeQuery("SELECT u.username AS username, projectname, password, user_key, " +
-          "user_cert, user_key_pwd FROM users u join user_certs uc ON u.username = uc.username");
+      Map<String, String> failures = batch.run(this::readProjectUsers, Runtime.getRuntime().availableProcessors(),
+          user -> prepareSecret(user, password, managed, desired),
+          secret -> {
+            client.secrets().inNamespace(secret.getMetadata().getNamespace()).createOrReplace(secret);
+            LOGGER.info("Secret " + secret.getMetadata().getName() + " created in namespace "
+                + secret.getMetadata().getNamespace());
+          });
+      // Fail the step so that the journal does not record it as done and a rerun retries them
+      if (!failures.isEmpty()) {
+        throw new MigrationException("Could not create Secrets for project users: " + failures.keySet());
+      }
+    } catch (ExecutionException e) {
+      throw new MigrationException("Cannot fetch the list of projects from the database", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while creating secrets", e);
+    }
 
-      while (resultSet.next()) {
-        String projectName = resultSet.getString("projectname");
-        String nsName = projectName.toLowerCase().replaceAll("[^a-z0-9-]", "-");
-
-        String kubeUsername = nsName + "--" +
-            resultSet.getString("username").toLowerCase().replaceAll("[^a-z0-9]", "-");
-        // In the cluster we have usernames that, after the replace, end with -. In this case we add a 0 after it
-        if (kubeUsername.endsWith("-")) {
-          kubeUsername = kubeUsername + "0";
-        }
-        String hopsUsername = projectName + "__" + resultSet.getString("username");
-
-        try {
-          String certPwd = HopsUtils.decrypt(resultSet.getString("password"),
-              resultSet.getString("user_key_pwd"), masterPwd);
-
-
-          Map<String, String> secretData = new HashMap<>();
-          secretData.put(hopsUsername + CERT_PASS_SUFFIX, Base64.getEncoder().encodeToString(certPwd.getBytes()));
-          secretData.put(hopsUsername + KEYSTORE_SUFFIX,
-              Base64.getEncoder().encodeToString(resultSet.getBytes("user_key")));
-          secretData.put(hopsUsername + TRUSTSTORE_SUFFIX,
-              Base64.getEncoder().encodeToString(resultSet.getBytes("user_cert")));
-
-          Secret secret = new SecretBuilder()
-              .withMetadata(new ObjectMetaBuilder()
-                  .withName(kubeUsername)
-                  .build())
-              .withData(secretData)
-              .build();
-
-          // Send request
-          client.secrets().inNamespace(nsName).createOrReplace(secret);
-
-          LOGGER.info("Secret " + kubeUsername + " created for project user: " + projectName);
-        } catch (Exception e) {
-          LOGGER.error("Could not create secret " + kubeUsername + " for project user: "
-              + projectName, e);
-        }
+    if (reconcile) {
+      prune(client, existing, desired);
+    }
+  }
 
+  private void readProjectUsers(Pipeline.Emitter<ProjectUser> emitter)
+      throws SQLException, ConfigurationException, InterruptedException {
+    try (Connection dbConn = DbConnectionFactory.getConnection();
+         Statement stmt = dbConn.createStatement();
+         ResultSet resultSet = stmt.executeQuery("SELECT u.username AS username, projectname, password, user_key, " +
+             "user_cert, user_key_pwd FROM users u join user_certs uc ON u.username = uc.username")) {
+      while (resultSet.next()) {
+        emitter.emit(new ProjectUser(resultSet.getString("projectname"), resultSet.getString("username"),
+            resultSet.getString("password"), resultSet.getString("user_key_pwd"), resultSet.getBytes("user_key"),
+            resultSet.getBytes("user_cert")));
       }
-    } catch (SQLException | ConfigurationException e) {
-      throw new MigrationException("Cannot fetch the list of projects from the database", e);
-    } finally {
-      if (stmt != null) {
-        try {
-          stmt.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
-      }
+    }
+  }
 
-      if (resultSet != null) {
-        try {
-          resultSet.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
+  // Returns null if the secret is already up to date
+  private Secret prepareSecret(ProjectUser user, String masterPwd, Map<String, Secret> existing,
+      Set<String> desired) throws Exception {
+    String nsName = ManagedResources.namespaceName(user.projectName);
+    String kubeUsername = ManagedResources.secretName(user.projectName, user.username);
+    String hopsUsername = user.projectName + "__" + user.username;
+    // Kept even if the secret cannot be created below, so it is not pruned
+    String key = ManagedResources.key(nsName, kubeUsername);
+    desired.add(key);
+
+    String certPwd = HopsUtils.decrypt(user.password, user.keyPassword, masterPwd);
+
+    Map<String, String> secretData = new HashMap<>();
+    secretData.put(hopsUsername + CERT_PASS_SUFFIX, Base64.getEncoder().encodeToString(certPwd.getBytes()));
+    secretData.put(hopsUsername + KEYSTORE_SUFFIX, Base64.getEncoder().encodeToString(user.keyStore));
+    secretData.put(hopsUsername + TRUSTSTORE_SUFFIX, Base64.getEncoder().encodeToString(user.trustStore));
+
+    String contentHash = ManagedResources.contentHash(secretData);
+    Map<String, String> labels = ManagedResources.labels(STEP, version, user.projectName);
+    Secret current = existing.get(key);
+    if (current != null && contentHash.equals(ManagedResources.contentHash(current))
+        && ManagedResources.hasLabels(current, labels)) {
+      LOGGER.debug("Secret " + kubeUsername + " is up to date for project user: " + hopsUsername);
+      metrics.increment(ManagedResources.UNCHANGED);
+      return null;
+    }
+
+    return new SecretBuilder()
+        .withMetadata(new ObjectMetaBuilder()
+            .withName(kubeUsername)
+            .withNamespace(nsName)
+            .withLabels(labels)
+            .addToAnnotations(ManagedResources.CONTENT_HASH_ANNOTATION, contentHash)
+            .build())
+        .withData(secretData)
+        .build();
+  }
+
+  // Deletes the Secrets created by Expat for users that are no longer members of the project
+  private void prune(KubernetesClient client, Map<String, Secret> existing, Set<String> desired) {
+    for (Map.Entry<String, Secret> secret : existing.entrySet()) {
+      if (desired.contains(secret.getKey())) {
+        continue;
+      }
+      try {
+        client.secrets().inNamespace(secret.getValue().getMetadata().getNamespace())
+            .withName(secret.getValue().getMetadata().getName()).delete();
+        LOGGER.info("Secret " + secret.getKey() + " deleted, its project user no longer exists");
+        metrics.increment(ManagedResources.PRUNED);
+      } catch (KubernetesClientException e) {
+        LOGGER.error("Could not delete Secret " + secret.getKey(), e);
+        metrics.increment(StepMetrics.FAILED);
       }
     }
   }
 
   @Override
   public void rollback() throws RollbackException {
+    KubernetesClientFactory.Usage usage = KubernetesClientFactory.startUsage();
+    try {
+      deleteSecrets();
+    } finally {
+      usage.record(metrics);
+    }
+  }
+
+  // One collection delete per namespace holding Secrets of this step
+  private void deleteSecrets() throws RollbackException {
     KubernetesClient client;
+    KubernetesBatch<String> batch;
+    int pageSize;
     try {
       client = KubernetesClientFactory.getClient();
+      batch = KubernetesBatch.fromConfig("DeleteCertSecrets", metrics);
+      pageSize = ConfigurationBuilder.getConfiguration()
+          .getInt(ExpatConf.KUBE_LIST_PAGE_SIZE, ExpatConf.KUBE_LIST_PAGE_SIZE_DEFAULT);
     } catch (ConfigurationException e) {
       throw new RollbackException("Cannot read the configuration", e);
     }
 
-    Connection dbConn;
-    Statement stmt = null;
-    ResultSet resultSet = null;
+    String selector = ManagedResources.selector(ManagedResources.labels(STEP, version, null));
     try {
-      dbConn = DbConnectionFactory.getConnection();
-      stmt = dbConn.createStatement();
-      resultSet = stmt.executeQuery("SELECT projectname, username FROM project");
-
-      while (resultSet.next()) {
-        String projectName = resultSet.getString("projectname");
-        String nsName = projectName.replace("_", "-");
-
-        String kubeUsername = nsName + "--" + resultSet.getString("username");
-        String hopsUsername = projectName + "__" + resultSet.getString("username");
-
-        try {
-
-          Secret secret = new SecretBuilder()
-              .withMetadata(new ObjectMetaBuilder()
-                  .withName(kubeUsername)
-                  .build())
-              .build();
-
-          client.secrets().inNamespace(nsName).delete(secret);
-          LOGGER.info("Secret " + kubeUsername + " deleted for project user: " + hopsUsername);
-        } catch (KubernetesClientException e) {
-          LOGGER.error("Could not delete secret" + kubeUsername + " for project user: " +
-              hopsUsername, e);
-        }
-
+      Set<String> namespaces = new TreeSet<>();
+      for (Secret secret : ManagedResources.listSecrets(client, selector, pageSize).values()) {
+        namespaces.add(secret.getMetadata().getNamespace());
       }
-    } catch (SQLException | ConfigurationException e) {
-      throw new RollbackException("Cannot fetch the list of projects from the database", e);
-    } finally {
-      if (stmt != null) {
-        try {
-          stmt.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
+      Map<String, String> failures = batch.run(emitter -> {
+        for (String nsName : namespaces) {
+          emitter.emit(nsName);
         }
+      }, nsName -> {
+        ManagedResources.deleteSecrets(client, nsName, selector);
+        LOGGER.info("Secrets deleted in namespace " + nsName);
+      });
+      if (!failures.isEmpty()) {
+        throw new RollbackException("Could not delete Secrets in namespaces: " + failures.keySet());
       }
+    } catch (IOException | KubernetesClientException | ExecutionException e) {
+      throw new RollbackException("Could not delete the Secrets created by Expat", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RollbackException("Interrupted while deleting Secrets", e);
+    }
+  }
 
-      if (resultSet != null) {
-        try {
-          resultSet.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
-      }
+  private static class ProjectUser {
+    private final String projectName;
+    private final String username;
+    private final String password;
+    private final String keyPassword;
+    private final byte[] keyStore;
+    private final byte[] trustStore;
+
+    private ProjectUser(String projectName, String username, String password, String keyPassword, byte[] keyStore,
+        byte[] trustStore) {
+      this.projectName = projectName;
+      this.username = username;
+      this.password = password;
+      this.keyPassword = keyPassword;
+      this.keyStore = keyStore;
+      this.trustStore = trustStore;
+    }
+
+    @Override
+    public String toString() {
+      return projectName + "__" + username;
     }
   }
 }
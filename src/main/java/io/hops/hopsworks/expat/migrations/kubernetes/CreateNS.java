@@ -18,131 +18,242 @@
 package io.hops.hopsworks.expat.migrations.kubernetes;
 
 import io.fabric8.kubernetes.api.model.Namespace;
-import io.fabric8.kubernetes.api.model.NamespaceBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
+import io.hops.hopsworks.expat.configuration.ExpatConf;
 import io.hops.hopsworks.expat.db.DbConnectionFactory;
+import io.hops.hopsworks.expat.executor.Pipeline;
 import io.hops.hopsworks.expat.kubernetes.KubernetesClientFactory;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import io.hops.hopsworks.expat.migrations.VersionedStep;
+import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-public class CreateNS implements MigrateStep {
+public class CreateNS implements MigrateStep, ReportingStep, VersionedStep {
   
   private static final Logger LOGGER = LogManager.getLogger(CreateNS.class);
+  static final String STEP = "CreateNS";
+  private static final long TERMINATION_POLL_MS = 2000;
+
+  private final StepMetrics metrics = new StepMetrics();
+  private String version;
+
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public void setVersion(String version) {
+    this.version = version;
+  }
 
   @Override
   public void migrate() throws MigrationException {
+    KubernetesClientFactory.Usage usage = KubernetesClientFactory.startUsage();
+    try {
+      createNamespaces();
+    } finally {
+      usage.record(metrics);
+    }
+  }
+
+  private void createNamespaces() throws MigrationException {
     KubernetesClient client;
+    KubernetesBatch<String> batch;
+    boolean reconcile;
+    int pageSize;
     try {
       client = KubernetesClientFactory.getClient();
+      batch = KubernetesBatch.fromConfig("CreateNS", metrics);
+      Configuration config = ConfigurationBuilder.getConfiguration();
+      reconcile = config.getBoolean(ExpatConf.KUBE_RECONCILE, false);
+      pageSize = config.getInt(ExpatConf.KUBE_LIST_PAGE_SIZE, ExpatConf.KUBE_LIST_PAGE_SIZE_DEFAULT);
     } catch (ConfigurationException e) {
       throw new MigrationException("Cannot read the configuration", e);
     }
 
-    Connection dbConn;
-    Statement stmt = null;
-    ResultSet resultSet = null;
-    try {
-      dbConn = DbConnectionFactory.getConnection();
-      stmt = dbConn.createStatement();
-      resultSet = stmt.executeQuery("SELECT projectname FROM project");
-
-      while (resultSet.next()) {
-        String projectName = resultSet.getString(1);
-        String nsName = projectName.toLowerCase().replaceAll("[^a-z0-9-]", "-");
-        try {
-          client.namespaces().createOrReplaceWithNew()
-              .withNewMetadata()
-              .withName(nsName)
-              .endMetadata()
-              .done();
-          LOGGER.info("Namespace " + nsName + " created for project: " + projectName);
-        } catch (KubernetesClientException e) {
-          LOGGER.error("Could not create Namespace " + nsName + " for project: " + projectName, e);
-        }
-
+    Map<String, Namespace> existing = Collections.emptyMap();
+    if (reconcile) {
+      try {
+        existing = ManagedResources.listNamespaces(client,
+            ManagedResources.selector(ManagedResources.labels(STEP, null, null)), pageSize);
+      } catch (IOException | KubernetesClientException e) {
+        throw new MigrationException("Cannot list the Namespaces managed by Expat", e);
       }
-    } catch (SQLException | ConfigurationException e) {
-      throw new MigrationException("Cannot fetch the list of projects from the database", e);
-    } finally {
-      if (stmt != null) {
-        try {
-          stmt.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
+    }
+    Map<String, Namespace> managed = existing;
+    Set<String> desired = ConcurrentHashMap.newKeySet();
+    try {
+      Map<String, String> failures = batch.run(this::readProjects, projectName -> {
+        String nsName = ManagedResources.namespaceName(projectName);
+        Map<String, String> labels = ManagedResources.labels(STEP, version, projectName);
+        desired.add(nsName);
+        Namespace current = managed.get(nsName);
+        if (current != null && ManagedResources.hasLabels(current, labels)) {
+          metrics.increment(ManagedResources.UNCHANGED);
+          LOGGER.debug("Namespace " + nsName + " already exists for project: " + projectName);
+          return;
         }
+        client.namespaces().createOrReplaceWithNew()
+            .withNewMetadata()
+            .withName(nsName)
+            .withLabels(labels)
+            .endMetadata()
+            .done();
+        LOGGER.info("Namespace " + nsName + " created for project: " + projectName);
+      });
+      // Fail the step so that the journal does not record it as done and a rerun retries them
+      if (!failures.isEmpty()) {
+        throw new MigrationException("Could not create Namespaces for projects: " + failures.keySet());
       }
+    } catch (ExecutionException e) {
+      throw new MigrationException("Cannot fetch the list of projects from the database", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while creating Namespaces", e);
+    }
 
-      if (resultSet != null) {
-        try {
-          resultSet.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
+    if (reconcile) {
+      prune(client, managed.keySet(), desired);
+    }
+  }
+
+  // Deletes the Namespaces created by Expat for projects that no longer exist
+  private void prune(KubernetesClient client, Set<String> managed, Set<String> desired) throws MigrationException {
+    List<String> orphans = new ArrayList<>();
+    for (String nsName : managed) {
+      if (!desired.contains(nsName)) {
+        orphans.add(nsName);
       }
     }
+    if (orphans.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Deleting " + orphans.size() + " Namespaces of projects that no longer exist");
+    try {
+      KubernetesBatch<String> batch = KubernetesBatch.fromConfig("PruneNS", metrics);
+      batch.run(emitter -> {
+        for (String nsName : orphans) {
+          emitter.emit(nsName);
+        }
+      }, nsName -> {
+        client.namespaces().withName(nsName).delete();
+        metrics.increment(ManagedResources.PRUNED);
+        LOGGER.info("Namespace " + nsName + " deleted, its project no longer exists");
+      });
+    } catch (ConfigurationException | ExecutionException e) {
+      throw new MigrationException("Could not delete Namespaces of removed projects", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while deleting Namespaces", e);
+    }
   }
 
   @Override
   public void rollback() throws RollbackException {
+    KubernetesClientFactory.Usage usage = KubernetesClientFactory.startUsage();
+    try {
+      deleteNamespaces();
+    } finally {
+      usage.record(metrics);
+    }
+  }
+
+  // Namespaces cannot be deleted as a collection, the labelled ones are listed and deleted one by one
+  private void deleteNamespaces() throws RollbackException {
     KubernetesClient client;
+    KubernetesBatch<String> batch;
+    int pageSize;
+    long waitSeconds;
     try {
       client = KubernetesClientFactory.getClient();
+      batch = KubernetesBatch.fromConfig("DeleteNS", metrics);
+      Configuration config = ConfigurationBuilder.getConfiguration();
+      pageSize = config.getInt(ExpatConf.KUBE_LIST_PAGE_SIZE, ExpatConf.KUBE_LIST_PAGE_SIZE_DEFAULT);
+      waitSeconds = config.getLong(ExpatConf.KUBE_TERMINATION_WAIT_SECONDS, 0L);
     } catch (ConfigurationException e) {
       throw new RollbackException("Cannot read the configuration", e);
     }
 
-    Connection dbConn;
-    Statement stmt = null;
-    ResultSet resultSet = null;
+    String selector = ManagedResources.selector(ManagedResources.labels(STEP, version, null));
+    Set<String> namespaces;
     try {
-      dbConn = DbConnectionFactory.getConnection();
-      stmt = dbConn.createStatement();
-      resultSet = stmt.executeQuery("SELECT projectname FROM project");
-
-      while (resultSet.next()) {
-        String projectName = resultSet.getString(1);
-        String nsName = projectName.replace("_", "-");
-        try {
-          Namespace ns = new NamespaceBuilder()
-              .withNewMetadata()
-              .withName(nsName)
-              .endMetadata()
-              .build();
-
-          client.namespaces().delete(ns);
-          LOGGER.info("Namespace " + nsName + " deleted for project: " + projectName);
-        } catch (KubernetesClientException e) {
-          LOGGER.error("Could not delete Namespace " + nsName + " for project: " + projectName, e);
+      namespaces = ManagedResources.listNamespaces(client, selector, pageSize).keySet();
+      Map<String, String> failures = batch.run(emitter -> {
+        for (String nsName : namespaces) {
+          emitter.emit(nsName);
         }
+      }, nsName -> {
+        client.namespaces().withName(nsName).delete();
+        LOGGER.info("Namespace " + nsName + " deleted");
+      });
+      if (waitSeconds > 0) {
+        Set<String> deleted = new HashSet<>(namespaces);
+        deleted.removeAll(failures.keySet());
+        awaitTermination(client, selector, pageSize, deleted, waitSeconds);
+      }
+      if (!failures.isEmpty()) {
+        throw new RollbackException("Could not delete Namespaces: " + failures.keySet());
+      }
+    } catch (IOException | KubernetesClientException | ExecutionException e) {
+      throw new RollbackException("Could not delete the Namespaces created by Expat", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RollbackException("Interrupted while deleting Namespaces", e);
+    }
+  }
 
+  // Namespaces linger while their content is removed, they are gone once they no longer match the selector
+  private void awaitTermination(KubernetesClient client, String selector, int pageSize, Set<String> deleted,
+      long waitSeconds) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+    Set<String> terminating = new HashSet<>(deleted);
+    while (true) {
+      terminating.retainAll(ManagedResources.listNamespaces(client, selector, pageSize).keySet());
+      if (terminating.isEmpty()) {
+        LOGGER.info("All " + deleted.size() + " Namespaces have terminated");
+        return;
       }
-    } catch (SQLException | ConfigurationException e) {
-      throw new RollbackException("Cannot fetch the list of projects from the database", e);
-    } finally {
-      if (stmt != null) {
-        try {
-          stmt.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
+      if (System.currentTimeMillis() >= deadline) {
+        LOGGER.warn(terminating.size() + " Namespaces are still terminating after " + waitSeconds + "s: "
+            + terminating);
+        return;
       }
+      LOGGER.info("Waiting for " + terminating.size() + " Namespaces to terminate");
+      Thread.sleep(TERMINATION_POLL_MS);
+    }
+  }
 
-      if (resultSet != null) {
-        try {
-          resultSet.close();
-        } catch (SQLException e) {
-          // Nothing to do here.
-        }
+  private void readProjects(Pipeline.Emitter<String> emitter)
+      throws SQLException, ConfigurationException, InterruptedException {
+    try (Connection dbConn = DbConnectionFactory.getConnection();
+         Statement stmt = dbConn.createStatement();
+         ResultSet resultSet = stmt.executeQuery("SELECT projectname FROM project")) {
+      while (resultSet.next()) {
+        emitter.emit(resultSet.getString(1));
       }
     }
   }
@@ -0,0 +1,145 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.kubernetes;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
+import io.hops.hopsworks.expat.configuration.ExpatConf;
+import io.hops.hopsworks.expat.executor.Pipeline;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs one Kubernetes API call per item from a pool of kube.workers threads. Calls are throttled
+ * on the client to kube.requestsPerSecond, so the API server is not pushed into rejecting them.
+ * Items can first be prepared by a separate pool, for the CPU bound work that precedes a call, so
+ * it overlaps with the calls instead of adding up with them.
+ *
+ * A failed item is logged and recorded, the other items are still processed. The failures are
+ * returned by {@link #run} and summarized in the log.
+ */
+class KubernetesBatch<T> {
+  private static final Logger LOGGER = LogManager.getLogger(KubernetesBatch.class);
+  private static final String THROTTLED_MS = "throttledMs";
+  
+  private final String name;
+  private final int workers;
+  private final RateLimiter rateLimiter;
+  private final StepMetrics metrics;
+  
+  KubernetesBatch(String name, int workers, double requestsPerSecond, StepMetrics metrics) {
+    this.name = name;
+    this.workers = Math.max(1, workers);
+    this.rateLimiter = requestsPerSecond > 0 ? RateLimiter.create(requestsPerSecond) : null;
+    this.metrics = metrics;
+  }
+  
+  static <T> KubernetesBatch<T> fromConfig(String name, StepMetrics metrics) throws ConfigurationException {
+    Configuration config = ConfigurationBuilder.getConfiguration();
+    return new KubernetesBatch<>(name, config.getInt(ExpatConf.KUBE_WORKERS, ExpatConf.KUBE_WORKERS_DEFAULT),
+        config.getDouble(ExpatConf.KUBE_REQUESTS_PER_SECOND, ExpatConf.KUBE_REQUESTS_PER_SECOND_DEFAULT), metrics);
+  }
+  
+  Map<String, String> run(Pipeline.Reader<T> reader, Call<T> call) throws ExecutionException, InterruptedException {
+    return run(reader, 1, item -> item, call);
+  }
+  
+  /**
+   * @param prepareThreads threads preparing the items for their call
+   * @param prepare returns what is passed to the call, or null if the item needs no call
+   * @return the items that failed, by their description, with the error
+   * @throws ExecutionException if the reader fails
+   */
+  <P> Map<String, String> run(Pipeline.Reader<T> reader, int prepareThreads, Prepare<T, P> prepare, Call<P> call)
+      throws ExecutionException, InterruptedException {
+    long start = System.currentTimeMillis();
+    Map<String, String> failures = new ConcurrentSkipListMap<>();
+    AtomicLong succeeded = new AtomicLong();
+    Pipeline<T, Task<P>> pipeline = new Pipeline<>(name, prepareThreads, workers, workers * 2);
+    pipeline.run(reader, item -> {
+      try {
+        P prepared = prepare.apply(item);
+        return prepared == null ? null : new Task<>(item.toString(), prepared, null);
+      } catch (Exception ex) {
+        LOGGER.error(name + " could not prepare " + item, ex);
+        return new Task<P>(item.toString(), null, ex);
+      }
+    }, task -> {
+      Exception error = task.error;
+      if (error == null) {
+        if (rateLimiter != null) {
+          metrics.add(THROTTLED_MS, Math.round(rateLimiter.acquire() * 1000));
+        }
+        try {
+          call.apply(task.prepared);
+        } catch (Exception ex) {
+          LOGGER.error(name + " failed for " + task.item, ex);
+          error = ex;
+        }
+      }
+      if (error == null) {
+        metrics.increment(StepMetrics.PROCESSED);
+        succeeded.incrementAndGet();
+      } else {
+        metrics.increment(StepMetrics.FAILED);
+        failures.put(task.item, String.valueOf(error.getMessage()));
+      }
+    });
+    
+    long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+    LOGGER.info(name + ": " + succeeded.get() + " succeeded, " + failures.size() + " failed in "
+        + seconds + "s with " + workers + " workers, "
+        + (rateLimiter != null ? "limited to " + rateLimiter.getRate() + " requests/s" : "not rate limited"));
+    for (Map.Entry<String, String> failure : failures.entrySet()) {
+      LOGGER.warn(name + " failed for " + failure.getKey() + ": " + failure.getValue());
+    }
+    return Collections.unmodifiableMap(failures);
+  }
+  
+  @FunctionalInterface
+  interface Prepare<T, P> {
+    P apply(T item) throws Exception;
+  }
+  
+  @FunctionalInterface
+  interface Call<T> {
+    void apply(T item) throws Exception;
+  }
+  
+  private static class Task<P> {
+    private final String item;
+    private final P prepared;
+    private final Exception error;
+    
+    private Task(String item, P prepared, Exception error) {
+      this.item = item;
+      this.prepared = prepared;
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.kubernetes;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.KubernetesResourceList;
+import io.fabric8.kubernetes.api.model.ListMeta;
+import io.fabric8.kubernetes.api.model.Namespace;
+import io.fabric8.kubernetes.api.model.NamespaceList;
+import io.fabric8.kubernetes.api.model.Secret;
+import io.fabric8.kubernetes.api.model.SecretList;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The namespaces and secrets created by Expat are named the same way by every step and carry
+ * labels: {@link #MANAGED_BY_LABEL}, the step and version that created them and their project. They
+ * can then be listed or deleted apart from the rest of the cluster. Secrets also carry a
+ * {@link #CONTENT_HASH_ANNOTATION} of their data, so an unchanged secret is recognized without
+ * comparing payloads.
+ *
+ * The version of the client neither pages list calls nor deletes collections, both are made
+ * directly with its HTTP client. API servers older than 1.9 ignore the page size and return
+ * everything at once.
+ */
+class ManagedResources {
+  private static final Logger LOGGER = LogManager.getLogger(ManagedResources.class);
+  static final String MANAGED_BY_LABEL = "app.kubernetes.io/managed-by";
+  static final String MANAGED_BY = "expat";
+  static final String STEP_LABEL = "hopsworks.io/expat-step";
+  static final String VERSION_LABEL = "hopsworks.io/expat-version";
+  static final String PROJECT_LABEL = "hopsworks.io/project";
+  static final String CONTENT_HASH_ANNOTATION = "hopsworks.io/content-hash";
+  static final String UNCHANGED = "unchanged";
+  static final String PRUNED = "pruned";
+  private static final int MAX_LABEL_VALUE = 63;
+  
+  private ManagedResources() {
+  }
+  
+  static String namespaceName(String projectName) {
+    return projectName.toLowerCase().replaceAll("[^a-z0-9-]", "-");
+  }
+  
+  static String secretName(String projectName, String username) {
+    String name = namespaceName(projectName) + "--" + username.toLowerCase().replaceAll("[^a-z0-9]", "-");
+    // In the cluster we have usernames that, after the replace, end with -. In this case we add a 0 after it
+    return name.endsWith("-") ? name + "0" : name;
+  }
+  
+  /**
+   * @param version left out if null
+   * @param projectName left out if null
+   */
+  static Map<String, String> labels(String step, String version, String projectName) {
+    Map<String, String> labels = new TreeMap<>();
+    labels.put(MANAGED_BY_LABEL, MANAGED_BY);
+    labels.put(STEP_LABEL, step);
+    if (version != null) {
+      labels.put(VERSION_LABEL, labelValue(version));
+    }
+    if (projectName != null) {
+      labels.put(PROJECT_LABEL, labelValue(projectName));
+    }
+    return labels;
+  }
+  
+  static boolean hasLabels(HasMetadata resource, Map<String, String> labels) {
+    Map<String, String> current = resource.getMetadata().getLabels();
+    return current != null && current.entrySet().containsAll(labels.entrySet());
+  }
+  
+  static String selector(Map<String, String> labels) {
+    StringBuilder selector = new StringBuilder();
+    for (Map.Entry<String, String> label : labels.entrySet()) {
+      if (selector.length() > 0) {
+        selector.append(',');
+      }
+      selector.append(label.getKey()).append('=').append(label.getValue());
+    }
+    return selector.toString();
+  }
+  
+  // At most 63 alphanumerics, '-', '_' or '.', starting and ending with an alphanumeric
+  private static String labelValue(String value) {
+    String label = value.replaceAll("[^A-Za-z0-9._-]", "-");
+    if (label.length() > MAX_LABEL_VALUE) {
+      label = label.substring(0, MAX_LABEL_VALUE);
+    }
+    return label.replaceAll("^[^A-Za-z0-9]+|[^A-Za-z0-9]+$", "");
+  }
+  
+  /**
+   * @return the namespaces matching the selector by name
+   */
+  static Map<String, Namespace> listNamespaces(KubernetesClient client, String selector, int pageSize)
+      throws IOException {
+    Map<String, Namespace> namespaces = new HashMap<>();
+    for (Namespace namespace : list(client, "api/v1/namespaces", selector, NamespaceList.class, Namespace.class,
+        pageSize)) {
+      namespaces.put(namespace.getMetadata().getName(), namespace);
+    }
+    return namespaces;
+  }
+  
+  /**
+   * @return the secrets matching the selector in all namespaces, by {@link #key(String, String)}
+   */
+  static Map<String, Secret> listSecrets(KubernetesClient client, String selector, int pageSize)
+      throws IOException {
+    Map<String, Secret> secrets = new HashMap<>();
+    for (Secret secret : list(client, "api/v1/secrets", selector, SecretList.class, Secret.class, pageSize)) {
+      secrets.put(key(secret.getMetadata().getNamespace(), secret.getMetadata().getName()), secret);
+    }
+    return secrets;
+  }
+  
+  /**
+   * Deletes the secrets matching the selector in a namespace with a single call
+   */
+  static void deleteSecrets(KubernetesClient client, String namespace, String selector) throws IOException {
+    HttpUrl url = url(client, "api/v1/namespaces/" + namespace + "/secrets").newBuilder()
+        .addQueryParameter("labelSelector", selector)
+        .build();
+    try (Response response = httpClient(client).newCall(new Request.Builder().delete().url(url).build()).execute()) {
+      if (!response.isSuccessful() && response.code() != 404) {
+        throw new IOException("Could not delete secrets in " + namespace + ": " + response.code() + " "
+            + response.message());
+      }
+    }
+  }
+  
+  static String key(String namespace, String name) {
+    return namespace + "/" + name;
+  }
+  
+  static String contentHash(Map<String, String> data) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (Map.Entry<String, String> entry : new TreeMap<>(data).entrySet()) {
+      hasher.putString(entry.getKey(), StandardCharsets.UTF_8).putByte((byte) 0)
+          .putString(entry.getValue(), StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+  
+  static String contentHash(HasMetadata resource) {
+    Map<String, String> annotations = resource.getMetadata().getAnnotations();
+    return annotations == null ? null : annotations.get(CONTENT_HASH_ANNOTATION);
+  }
+  
+  // The list types of the model implement KubernetesResourceList without its item type
+  private static <T extends HasMetadata> List<T> list(KubernetesClient client, String path, String selector,
+      Class<?> listType, Class<T> itemType, int pageSize) throws IOException {
+    OkHttpClient httpClient = httpClient(client);
+    HttpUrl url = url(client, path);
+    List<T> items = new ArrayList<>();
+    String continueToken = null;
+    int pages = 0;
+    do {
+      HttpUrl.Builder page = url.newBuilder()
+          .addQueryParameter("labelSelector", selector)
+          .addQueryParameter("limit", String.valueOf(pageSize));
+      if (continueToken != null) {
+        page.addQueryParameter("continue", continueToken);
+      }
+      try (Response response = httpClient.newCall(new Request.Builder().get().url(page.build()).build()).execute()) {
+        if (!response.isSuccessful() || response.body() == null) {
+          throw new IOException("Could not list " + path + ": " + response.code() + " " + response.message());
+        }
+        KubernetesResourceList<?> list =
+            (KubernetesResourceList<?>) Serialization.unmarshal(response.body().byteStream(), listType);
+        if (list.getItems() != null) {
+          for (Object item : list.getItems()) {
+            items.add(itemType.cast(item));
+          }
+        }
+        continueToken = continueToken(list.getMetadata());
+      }
+      pages++;
+    } while (continueToken != null);
+    LOGGER.info("Listed " + items.size() + " " + path + " matching " + selector + " in " + pages + " pages");
+    return items;
+  }
+  
+  private static OkHttpClient httpClient(KubernetesClient client) {
+    return ((HttpClientAware) client).getHttpClient();
+  }
+  
+  private static HttpUrl url(KubernetesClient client, String path) throws IOException {
+    HttpUrl url = HttpUrl.get(new URL(client.getMasterUrl(), path));
+    if (url == null) {
+      throw new IOException("Invalid Kubernetes master URL " + client.getMasterUrl());
+    }
+    return url;
+  }
+  
+  // The model of the client predates paging, the token ends up among the unknown properties
+  private static String continueToken(ListMeta metadata) {
+    Object token = metadata == null ? null : metadata.getAdditionalProperties().get("continue");
+    return token == null || token.toString().isEmpty() ? null : token.toString();
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Copies of the certs/ and private/ files of the intermediate CA that a run replaces, taken in
+ * bulk before the certificates are generated.
+ *
+ * Files are hard linked into the backup directory, which costs no copy. When the backup directory
+ * is on another file system they are written to a compressed archive instead. manifest.txt lists
+ * every backed up file, relative to the CA, with where its copy is. Backup directories written
+ * before the store existed hold the files flat and have no manifest, they are read as such.
+ */
+class CertificateBackupStore {
+  private static final Logger LOGGER = LogManager.getLogger(CertificateBackupStore.class);
+  static final String MANIFEST = "manifest.txt";
+  private static final String LINK = "link";
+  private static final String FLAT = "flat";
+  private static final String ARCHIVE_PREFIX = "certs_backup_";
+  
+  private final Path backupDir;
+  private final Path intermediateCA;
+  // CA relative file to LINK, FLAT or the archive holding it
+  private final Map<String, String> manifest = new LinkedHashMap<>();
+  
+  private CertificateBackupStore(Path backupDir, Path intermediateCA) {
+    this.backupDir = backupDir;
+    this.intermediateCA = intermediateCA;
+  }
+  
+  static CertificateBackupStore open(Path backupDir, Path intermediateCA) throws IOException {
+    CertificateBackupStore store = new CertificateBackupStore(backupDir, intermediateCA);
+    Path manifestFile = backupDir.resolve(MANIFEST);
+    if (Files.exists(manifestFile)) {
+      for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+        String[] entry = line.split("\t");
+        if (entry.length == 2) {
+          store.manifest.put(entry[0], entry[1]);
+        }
+      }
+    } else if (Files.isDirectory(backupDir)) {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(backupDir, "*.{cert,key}.pem")) {
+        for (Path file : files) {
+          store.manifest.put(caPath(file.getFileName().toString()), FLAT);
+        }
+      }
+    }
+    return store;
+  }
+  
+  /**
+   * @return the files of a certificate, relative to the intermediate CA
+   */
+  static String[] files(String id) {
+    return new String[]{caPath(id + ".cert.pem"), caPath(id + ".key.pem")};
+  }
+  
+  /**
+   * Backs up the existing files of the certificates that are not backed up yet
+   *
+   * @return files backed up
+   */
+  int backup(Collection<String> ids, int threads) throws IOException {
+    List<String> toBackup = new ArrayList<>();
+    for (String id : ids) {
+      for (String file : files(id)) {
+        if (!manifest.containsKey(file) && Files.exists(intermediateCA.resolve(file))) {
+          toBackup.add(file);
+        }
+      }
+    }
+    if (toBackup.isEmpty()) {
+      return 0;
+    }
+    long start = System.currentTimeMillis();
+    String location;
+    if (canLink(toBackup.get(0))) {
+      location = LINK;
+      parallel(toBackup, threads, file -> () -> {
+        Path link = backupDir.resolve(file);
+        Files.createDirectories(link.getParent());
+        Files.deleteIfExists(link);
+        Files.createLink(link, intermediateCA.resolve(file));
+        return null;
+      });
+    } else {
+      location = archive(toBackup);
+    }
+    for (String file : toBackup) {
+      manifest.put(file, location);
+    }
+    writeManifest();
+    LOGGER.info("Backed up " + toBackup.size() + " files to " + backupDir + (LINK.equals(location) ? " as hard links"
+        : " in " + location) + " in " + (System.currentTimeMillis() - start) + "ms");
+    return toBackup.size();
+  }
+  
+  /**
+   * Puts back the files of one certificate, keeping the backup
+   */
+  void restore(String id) throws IOException {
+    for (String file : files(id)) {
+      if (manifest.containsKey(file)) {
+        Files.deleteIfExists(intermediateCA.resolve(file));
+        copyBack(file, false);
+      }
+    }
+  }
+  
+  /**
+   * Moves back every backed up file
+   *
+   * @return files restored
+   */
+  int restoreAll(int threads) throws IOException {
+    List<String> files = new ArrayList<>(manifest.keySet());
+    parallel(files, threads, file -> () -> {
+      copyBack(file, true);
+      return null;
+    });
+    return files.size();
+  }
+  
+  /**
+   * @return the content of the backed up certificates, without the keys
+   */
+  Map<String, byte[]> readCertificates() throws IOException {
+    Map<String, byte[]> certificates = new LinkedHashMap<>();
+    Map<String, ZipFile> archives = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, String> entry : manifest.entrySet()) {
+        if (!entry.getKey().endsWith(".cert.pem")) {
+          continue;
+        }
+        String location = entry.getValue();
+        if (LINK.equals(location) || FLAT.equals(location)) {
+          certificates.put(entry.getKey(), Files.readAllBytes(backupPath(entry.getKey(), location)));
+        } else {
+          ZipFile archive = archives.get(location);
+          if (archive == null) {
+            archive = new ZipFile(backupDir.resolve(location).toFile());
+            archives.put(location, archive);
+          }
+          try (InputStream in = archive.getInputStream(archive.getEntry(entry.getKey()))) {
+            certificates.put(entry.getKey(), IOUtils.toByteArray(in));
+          }
+        }
+      }
+    } finally {
+      for (ZipFile archive : archives.values()) {
+        archive.close();
+      }
+    }
+    return certificates;
+  }
+  
+  private boolean canLink(String file) throws IOException {
+    Path link = backupDir.resolve(file);
+    Files.createDirectories(link.getParent());
+    try {
+      Files.deleteIfExists(link);
+      Files.createLink(link, intermediateCA.resolve(file));
+      return true;
+    } catch (FileSystemException | UnsupportedOperationException ex) {
+      LOGGER.info("Cannot hard link " + intermediateCA + " into " + backupDir + ", archiving instead: "
+          + ex.getMessage());
+      return false;
+    }
+  }
+  
+  private String archive(List<String> files) throws IOException {
+    int n = 1;
+    while (Files.exists(backupDir.resolve(ARCHIVE_PREFIX + n + ".zip"))) {
+      n++;
+    }
+    String name = ARCHIVE_PREFIX + n + ".zip";
+    Path tmp = backupDir.resolve(name + ".tmp");
+    try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      for (String file : files) {
+        zip.putNextEntry(new ZipEntry(file));
+        Files.copy(intermediateCA.resolve(file), zip);
+        zip.closeEntry();
+      }
+    }
+    Files.move(tmp, backupDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    return name;
+  }
+  
+  private void copyBack(String file, boolean move) throws IOException {
+    String location = manifest.get(file);
+    Path target = intermediateCA.resolve(file);
+    if (LINK.equals(location) || FLAT.equals(location)) {
+      Path backup = backupPath(file, location);
+      if (move) {
+        Files.move(backup, target, StandardCopyOption.REPLACE_EXISTING);
+        // Renaming onto another link to the same file does nothing
+        Files.deleteIfExists(backup);
+      } else if (LINK.equals(location)) {
+        Files.createLink(target, backup);
+      } else {
+        Files.copy(backup, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } else {
+      try (ZipFile archive = new ZipFile(backupDir.resolve(location).toFile());
+           InputStream in = archive.getInputStream(archive.getEntry(file))) {
+        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+  
+  private Path backupPath(String file, String location) {
+    return FLAT.equals(location) ? backupDir.resolve(file.substring(file.indexOf('/') + 1)) : backupDir.resolve(file);
+  }
+  
+  private void writeManifest() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> entry : manifest.entrySet()) {
+      sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+    }
+    IntermediateCA.writeAtomically(backupDir.resolve(MANIFEST), sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  private void parallel(List<String> files, int threads, FileTask task) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+        new DaemonThreadFactory("CertificateBackup"));
+    try {
+      List<Future<Void>> results = new ArrayList<>(files.size());
+      for (String file : files) {
+        results.add(pool.submit(task.of(file)));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while copying certificate files", ex);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  private static String caPath(String fileName) {
+    return (fileName.endsWith(".cert.pem") ? "certs/" : "private/") + fileName;
+  }
+  
+  @FunctionalInterface
+  private interface FileTask {
+    Callable<Void> of(String file);
+  }
+}
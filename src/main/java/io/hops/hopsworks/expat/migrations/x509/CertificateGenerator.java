@@ -0,0 +1,64 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+
+import java.io.IOException;
+
+/**
+ * Issues certificates signed by the intermediate CA
+ */
+interface CertificateGenerator {
+  /**
+   * Called with the number of certificates about to be generated, before they are read from the
+   * database, so the generator can start preparing for them.
+   */
+  default void prepare(int certificates, StepMetrics metrics) {
+  }
+  
+  /**
+   * Generates a key and a certificate for id, leaves them in the certs and private directories of
+   * the intermediate CA and sets the key store and trust store of the certificate, both protected
+   * with its plain password.
+   */
+  void generate(String id, ExpatCertificate certificate, ExpatUser user) throws IOException;
+  
+  /**
+   * Called after a chunk of generated certificates has been stored in the database
+   */
+  default void chunkStored() {
+  }
+  
+  /**
+   * @return concurrent generations to use when x509.generationThreads is not set
+   */
+  int defaultThreads();
+  
+  /**
+   * @return the most concurrent generations the generator supports
+   */
+  int maxThreads();
+  
+  /**
+   * Releases what {@link #prepare} started
+   */
+  default void close() {
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.configuration.ExpatConf;
+import org.apache.commons.configuration2.Configuration;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Decides from the key store of an existing certificate whether it has to be regenerated, based
+ * on the x509.regenerate criteria. Only the certificates are read, so the store password is not
+ * needed.
+ */
+class CertificateInspector {
+  static final String UNREADABLE = "unreadable";
+  static final String ISSUER = "issuer";
+  static final String SUBJECT = "subject";
+  static final String KEY_SIZE = "keySize";
+  static final String EXPIRY = "expiry";
+  
+  private final X500Principal issuer;
+  private final Pattern subjectPattern;
+  private final int minKeySize;
+  private final long expiresWithinMs;
+  
+  private CertificateInspector(X500Principal issuer, Pattern subjectPattern, int minKeySize, long expiresWithinMs) {
+    this.issuer = issuer;
+    this.subjectPattern = subjectPattern;
+    this.minKeySize = minKeySize;
+    this.expiresWithinMs = expiresWithinMs;
+  }
+  
+  /**
+   * @return the inspector for the configured criteria, or null if there are none and every
+   * certificate has to be regenerated
+   */
+  static CertificateInspector fromConfig(Configuration config) {
+    String issuer = config.getString(ExpatConf.REGENERATE_ISSUER, null);
+    String subjectPattern = config.getString(ExpatConf.REGENERATE_SUBJECT_PATTERN, null);
+    int minKeySize = config.getInt(ExpatConf.REGENERATE_MIN_KEY_SIZE, 0);
+    int expiresWithinDays = config.getInt(ExpatConf.REGENERATE_EXPIRES_WITHIN_DAYS, -1);
+    if (isEmpty(issuer) && isEmpty(subjectPattern) && minKeySize <= 0 && expiresWithinDays < 0) {
+      return null;
+    }
+    return new CertificateInspector(
+        isEmpty(issuer) ? null : new X500Principal(issuer),
+        isEmpty(subjectPattern) ? null : Pattern.compile(subjectPattern),
+        minKeySize,
+        expiresWithinDays < 0 ? -1 : TimeUnit.DAYS.toMillis(expiresWithinDays));
+  }
+  
+  /**
+   * @return the first criterion the certificate fails, or null if it does not need to be
+   * regenerated
+   */
+  String inspect(byte[] keyStore) {
+    X509Certificate cert = readCertificate(keyStore);
+    if (cert == null) {
+      return UNREADABLE;
+    }
+    if (issuer != null && !issuer.equals(cert.getIssuerX500Principal())) {
+      return ISSUER;
+    }
+    if (subjectPattern != null
+        && !subjectPattern.matcher(cert.getSubjectX500Principal().getName(X500Principal.RFC2253)).matches()) {
+      return SUBJECT;
+    }
+    if (minKeySize > 0) {
+      PublicKey key = cert.getPublicKey();
+      if (!(key instanceof RSAPublicKey) || ((RSAPublicKey) key).getModulus().bitLength() < minKeySize) {
+        return KEY_SIZE;
+      }
+    }
+    if (expiresWithinMs >= 0 && cert.getNotAfter().before(new Date(System.currentTimeMillis() + expiresWithinMs))) {
+      return EXPIRY;
+    }
+    return null;
+  }
+  
+  private X509Certificate readCertificate(byte[] keyStore) {
+    if (keyStore == null || keyStore.length == 0) {
+      return null;
+    }
+    try {
+      KeyStore store = KeyStore.getInstance("JKS");
+      // Without a password the integrity check is skipped, certificates are not encrypted
+      store.load(new ByteArrayInputStream(keyStore), null);
+      Enumeration<String> aliases = store.aliases();
+      while (aliases.hasMoreElements()) {
+        String alias = aliases.nextElement();
+        if (store.isKeyEntry(alias)) {
+          Certificate cert = store.getCertificate(alias);
+          return cert instanceof X509Certificate ? (X509Certificate) cert : null;
+        }
+      }
+      return null;
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+  
+  private static boolean isEmpty(String value) {
+    return value == null || value.isEmpty();
+  }
+}
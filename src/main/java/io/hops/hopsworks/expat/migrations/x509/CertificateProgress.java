@@ -0,0 +1,119 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checkpoint of a certificate migration. The first line of the file is the backup directory of
+ * the run, every other line the id of a certificate already stored in the database.
+ *
+ * A run that finds the file of an unfinished run resumes it, keeping its backup directory and
+ * skipping the certificates it stored. The file is removed when all certificates are stored.
+ */
+class CertificateProgress {
+  private final Path file;
+  private final Path backupDir;
+  private final Set<String> done = new HashSet<>();
+  private final boolean resumed;
+  
+  private CertificateProgress(Path file, Path backupDir, boolean resumed) {
+    this.file = file;
+    this.backupDir = backupDir;
+    this.resumed = resumed;
+  }
+  
+  /**
+   * @param newBackupDir backup directory to use if there is no unfinished run
+   */
+  static CertificateProgress open(Path file, Path newBackupDir) throws IOException {
+    if (Files.exists(file)) {
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (!lines.isEmpty() && !lines.get(0).isEmpty()) {
+        CertificateProgress progress = new CertificateProgress(file, Paths.get(lines.get(0)), true);
+        for (String id : lines.subList(1, lines.size())) {
+          if (!id.isEmpty()) {
+            progress.done.add(id);
+          }
+        }
+        return progress;
+      }
+    }
+    Files.write(file, (newBackupDir.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    return new CertificateProgress(file, newBackupDir, false);
+  }
+  
+  /**
+   * @return the backup directory of the run that left file, or null if it names none
+   */
+  static Path readBackupDir(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    return lines.isEmpty() || lines.get(0).isEmpty() ? null : Paths.get(lines.get(0));
+  }
+  
+  Path getBackupDir() {
+    return backupDir;
+  }
+  
+  boolean isResumed() {
+    return resumed;
+  }
+  
+  boolean isDone(String id) {
+    return done.contains(id);
+  }
+  
+  int doneCount() {
+    return done.size();
+  }
+  
+  /**
+   * Records certificates that have been committed to the database, the file is synced before
+   * returning
+   */
+  void markDone(Collection<String> ids) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String id : ids) {
+      sb.append(id).append('\n');
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      OutputStream out = Channels.newOutputStream(channel);
+      out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      channel.force(false);
+    }
+    done.addAll(ids);
+  }
+  
+  void finish() throws IOException {
+    Files.deleteIfExists(file);
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.configuration.ExpatConf;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revokes the certificates left in certificate backup directories with a single pass over the
+ * index of the intermediate CA, then writes the CRL once. It does what
+ * scripts/revoke_certificates.sh does with openssl ca -revoke for every certificate followed by
+ * -gencrl, without a process and a re-read of the CA database per certificate.
+ */
+public class CertificateRevoker {
+  private static final Logger LOGGER = LogManager.getLogger(CertificateRevoker.class);
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  // Left in a backup directory once its certificates are revoked, they must not be restored
+  static final String REVOKED_FILE = "revoked";
+  
+  private final IntermediateCA ca;
+  private final Path crlFile;
+  private final int crlDays;
+  
+  CertificateRevoker(IntermediateCA ca, Path crlFile, int crlDays) {
+    this.ca = ca;
+    this.crlFile = crlFile;
+    this.crlDays = crlDays;
+  }
+  
+  public static CertificateRevoker fromConfig(Configuration config) throws IOException {
+    Path intermediateCA = Paths.get(config.getString(ExpatConf.INTERMEDIATE_CA_PATH));
+    String crlFile = config.getString(ExpatConf.CERTS_CRL, null);
+    IntermediateCA ca = new IntermediateCA(intermediateCA, config.getString(ExpatConf.INTERMEDIATE_CA_KEY_PWD));
+    return new CertificateRevoker(ca,
+        crlFile != null ? Paths.get(crlFile) : intermediateCA.resolve("crl").resolve("intermediate.crl.pem"),
+        config.getInt(ExpatConf.CERTS_CRL_DAYS, ExpatConf.CERTS_CRL_DAYS_DEFAULT));
+  }
+  
+  /**
+   * @return the backup directories of the latest runs of the certificate steps, unless they have
+   * been rolled back
+   */
+  public static List<Path> latestBackupDirs() {
+    String userHome = System.getProperty("user.home");
+    List<Path> dirs = new ArrayList<>(2);
+    for (String prefix : new String[]{GenerateUserCertificates.BACKUP_DIR_PREFIX,
+        GenerateProjectCertificates.BACKUP_DIR_PREFIX}) {
+      Path dir = GenerateCertificates.findLatestBackupDir(userHome, prefix);
+      if (dir != null && !isRestored(dir)) {
+        dirs.add(dir);
+      } else if (dir != null) {
+        LOGGER.info("Not revoking " + dir + ", its certificates have been restored");
+      }
+    }
+    return dirs;
+  }
+  
+  /**
+   * Marks the certificates found in the directories as revoked in the index and regenerates the
+   * CRL. Certificates already revoked or not issued by the intermediate CA are skipped, as are
+   * directories whose certificates have been restored by a rollback. The revoked directories are
+   * marked so that they are not restored later.
+   *
+   * @return certificates revoked
+   */
+  public int revoke(Collection<Path> backupDirs) throws IOException {
+    X509Certificate caCert = ca.getCertificate();
+    Map<BigInteger, String> toRevoke = new HashMap<>();
+    List<Path> revokedDirs = new ArrayList<>(backupDirs.size());
+    for (Path dir : backupDirs) {
+      if (!Files.isDirectory(dir)) {
+        throw new IOException("Could not list certificates in " + dir);
+      }
+      if (isRestored(dir)) {
+        LOGGER.warn("Not revoking " + dir + ", its certificates have been restored and are in use");
+        continue;
+      }
+      revokedDirs.add(dir);
+      Map<String, byte[]> certFiles = CertificateBackupStore.open(dir, ca.getDir()).readCertificates();
+      for (Map.Entry<String, byte[]> certFile : certFiles.entrySet()) {
+        String name = dir.resolve(certFile.getKey()).toString();
+        X509Certificate cert = readCertificate(name, certFile.getValue());
+        if (cert == null) {
+          LOGGER.warn("No certificate in " + name);
+        } else if (!cert.getIssuerX500Principal().equals(caCert.getSubjectX500Principal())) {
+          LOGGER.warn("Not revoking " + name + ", it was not issued by the intermediate CA");
+        } else {
+          toRevoke.put(cert.getSerialNumber(), name);
+        }
+      }
+    }
+    LOGGER.info("Revoking " + toRevoke.size() + " certificates");
+    
+    Date now = new Date();
+    String revocationDate = IntermediateCA.formatTime(now);
+    List<String[]> index = ca.readIndex();
+    int revoked = 0;
+    for (String[] entry : index) {
+      if (entry.length <= IntermediateCA.INDEX_SERIAL) {
+        continue;
+      }
+      String certFile = toRevoke.remove(new BigInteger(entry[IntermediateCA.INDEX_SERIAL], 16));
+      if (certFile == null) {
+        continue;
+      }
+      if ("V".equals(entry[IntermediateCA.INDEX_STATUS])) {
+        entry[IntermediateCA.INDEX_STATUS] = "R";
+        entry[IntermediateCA.INDEX_REVOCATION] = revocationDate;
+        revoked++;
+      } else {
+        LOGGER.debug(certFile + " is already " + entry[IntermediateCA.INDEX_STATUS]);
+      }
+    }
+    for (String certFile : toRevoke.values()) {
+      LOGGER.warn("Not revoking " + certFile + ", it is not in the index of the intermediate CA");
+    }
+    if (revoked > 0) {
+      ca.writeIndex(index);
+    }
+    writeCrl(index, now);
+    for (Path dir : revokedDirs) {
+      Files.write(dir.resolve(REVOKED_FILE), (revocationDate + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+    LOGGER.info("Revoked " + revoked + " certificates, updated CRL " + crlFile);
+    return revoked;
+  }
+  
+  static boolean isRevoked(Path backupDir) {
+    return Files.exists(backupDir.resolve(REVOKED_FILE));
+  }
+  
+  private static boolean isRestored(Path backupDir) {
+    return Files.exists(backupDir.resolve(CertificateSnapshot.RESTORED_FILE));
+  }
+  
+  private void writeCrl(List<String[]> index, Date now) throws IOException {
+    try {
+      JcaX509v2CRLBuilder builder = new JcaX509v2CRLBuilder(ca.getCertificate(), now);
+      builder.setNextUpdate(new Date(now.getTime() + TimeUnit.DAYS.toMillis(crlDays)));
+      for (String[] entry : index) {
+        if (entry.length > IntermediateCA.INDEX_SERIAL && "R".equals(entry[IntermediateCA.INDEX_STATUS])) {
+          String[] revocation = entry[IntermediateCA.INDEX_REVOCATION].split(",");
+          builder.addCRLEntry(new BigInteger(entry[IntermediateCA.INDEX_SERIAL], 16),
+              IntermediateCA.parseTime(revocation[0]), revocation.length > 1 ? reasonCode(revocation[1]) : 0);
+        }
+      }
+      builder.addExtension(Extension.authorityKeyIdentifier, false,
+          new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(ca.getCertificate()));
+      // Like openssl, number the CRL only if the CA keeps a crlnumber file
+      Path crlNumberFile = ca.getDir().resolve("crlnumber");
+      BigInteger crlNumber = null;
+      if (Files.exists(crlNumberFile)) {
+        crlNumber = new BigInteger(new String(Files.readAllBytes(crlNumberFile), StandardCharsets.US_ASCII).trim(), 16);
+        builder.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+      }
+      X509CRLHolder crl = builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(ca.getKey()));
+      
+      Files.createDirectories(crlFile.toAbsolutePath().getParent());
+      Path tmp = crlFile.resolveSibling(crlFile.getFileName() + ".tmp");
+      IntermediateCA.writePem(tmp, crl);
+      Files.move(tmp, crlFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (crlNumber != null) {
+        IntermediateCA.writeAtomically(crlNumberFile,
+            (IntermediateCA.toHex(crlNumber.add(BigInteger.ONE)) + "\n").getBytes(StandardCharsets.US_ASCII));
+      }
+    } catch (GeneralSecurityException | OperatorCreationException | ParseException ex) {
+      throw new IOException("Could not generate the CRL", ex);
+    }
+  }
+  
+  private X509Certificate readCertificate(String certFile, byte[] pem) throws IOException {
+    try {
+      List<X509Certificate> certs = IntermediateCA.readCertificates(
+          new InputStreamReader(new ByteArrayInputStream(pem), StandardCharsets.US_ASCII));
+      return certs.isEmpty() ? null : certs.get(0);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Could not read certificate " + certFile, ex);
+    }
+  }
+  
+  // Reason names of openssl ca -crl_reason
+  private int reasonCode(String reason) {
+    switch (reason) {
+      case "keyCompromise":
+        return CRLReason.keyCompromise;
+      case "CACompromise":
+        return CRLReason.cACompromise;
+      case "affiliationChanged":
+        return CRLReason.affiliationChanged;
+      case "superseded":
+        return CRLReason.superseded;
+      case "cessationOfOperation":
+        return CRLReason.cessationOfOperation;
+      case "certificateHold":
+        return CRLReason.certificateHold;
+      case "removeFromCRL":
+        return CRLReason.removeFromCRL;
+      default:
+        return CRLReason.unspecified;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact copy of certificate rows taken before they are regenerated. The columns of the snapshot
+ * query are stored in order, so restoring is running an UPDATE whose parameters are in the same
+ * order for every row.
+ */
+class CertificateSnapshot {
+  static final String FILE = "db_snapshot.gz";
+  static final String RESTORED_FILE = "db_snapshot.restored.gz";
+  
+  private static final int MAGIC = 0x45584331;
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte BYTES = 2;
+  
+  private CertificateSnapshot() {
+  }
+  
+  /**
+   * Writes the rows of the query to file, through a temporary file so that a snapshot is either
+   * complete or missing. The rows hold key stores, only the owner can read the file.
+   *
+   * @return rows written
+   */
+  static int write(Connection connection, String query, Path file) throws SQLException, IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.deleteIfExists(tmp);
+    try {
+      Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException ex) {
+      Files.createFile(tmp);
+    }
+    int rows = 0;
+    try (Statement stmt = connection.createStatement();
+         ResultSet rowsRS = stmt.executeQuery(query);
+         DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+             Files.newOutputStream(tmp))))) {
+      ResultSetMetaData meta = rowsRS.getMetaData();
+      int columns = meta.getColumnCount();
+      boolean[] binary = new boolean[columns + 1];
+      for (int i = 1; i <= columns; i++) {
+        int type = meta.getColumnType(i);
+        binary[i] = type == Types.BLOB || type == Types.BINARY || type == Types.VARBINARY
+            || type == Types.LONGVARBINARY;
+      }
+      out.writeInt(MAGIC);
+      out.writeInt(columns);
+      while (rowsRS.next()) {
+        out.writeBoolean(true);
+        for (int i = 1; i <= columns; i++) {
+          byte[] value = binary[i] ? rowsRS.getBytes(i) : toBytes(rowsRS.getString(i));
+          if (value == null) {
+            out.writeByte(NULL);
+          } else {
+            out.writeByte(binary[i] ? BYTES : STRING);
+            out.writeInt(value.length);
+            out.write(value);
+          }
+        }
+        rows++;
+      }
+      out.writeBoolean(false);
+    }
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return rows;
+  }
+  
+  /**
+   * Runs update once per row of the snapshot, committing every batchSize rows. On failure the
+   * current batch is rolled back, the batches already committed stay and a rerun updates them again.
+   *
+   * @return rows restored
+   */
+  static int restore(Path file, Connection connection, String update, int batchSize)
+      throws SQLException, IOException {
+    int rows = 0;
+    boolean autoCommit = connection.getAutoCommit();
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(
+        Files.newInputStream(file))));
+         PreparedStatement stmt = connection.prepareStatement(update)) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a certificates snapshot");
+      }
+      int columns = in.readInt();
+      connection.setAutoCommit(false);
+      while (in.readBoolean()) {
+        for (int i = 1; i <= columns; i++) {
+          byte type = in.readByte();
+          if (type == NULL) {
+            stmt.setNull(i, Types.NULL);
+            continue;
+          }
+          byte[] value = new byte[in.readInt()];
+          in.readFully(value);
+          if (type == BYTES) {
+            stmt.setBytes(i, value);
+          } else {
+            stmt.setString(i, new String(value, StandardCharsets.UTF_8));
+          }
+        }
+        stmt.addBatch();
+        if (++rows % batchSize == 0) {
+          stmt.executeBatch();
+          connection.commit();
+        }
+      }
+      stmt.executeBatch();
+      connection.commit();
+    } catch (SQLException | IOException ex) {
+      // Restoring auto-commit below would commit the partial batch
+      if (!connection.getAutoCommit()) {
+        try {
+          connection.rollback();
+        } catch (SQLException rollbackEx) {
+          ex.addSuppressed(rollbackEx);
+        }
+      }
+      throw ex;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+    return rows;
+  }
+  
+  private static byte[] toBytes(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.migrations.MigrationException;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Users with their address and organization, loaded with a single joined query instead of three
+ * queries per certificate. Users without an address or an organization are left out, as a
+ * certificate cannot be issued for them.
+ */
+class ExpatUsers {
+  private static final String SELECT_USERS = "SELECT u.uid, u.username, u.password, u.email, u.orcid, "
+      + "a.country, a.city, o.org_name FROM users u "
+      + "JOIN address a ON a.uid = u.uid "
+      + "JOIN organization o ON o.uid = u.uid";
+  
+  private final Map<String, ExpatUser> byUsername = new HashMap<>();
+  private final Map<String, ExpatUser> byEmail = new HashMap<>();
+  
+  private ExpatUsers() {
+  }
+  
+  /**
+   * @param condition WHERE clause on the users table, aliased u, restricting the users loaded
+   */
+  static ExpatUsers load(Connection connection, String condition) throws SQLException {
+    ExpatUsers users = new ExpatUsers();
+    try (Statement stmt = connection.createStatement();
+         ResultSet usersRS = stmt.executeQuery(SELECT_USERS + " " + condition)) {
+      while (usersRS.next()) {
+        ExpatUser user = new ExpatUser(usersRS.getInt("uid"), usersRS.getString("username"),
+            usersRS.getString("password"), usersRS.getString("email"), usersRS.getString("orcid"),
+            usersRS.getString("org_name"), usersRS.getString("country"), usersRS.getString("city"));
+        // Keep the first address and organization of a user, like the per user queries did
+        users.byUsername.putIfAbsent(user.getUsername(), user);
+        users.byEmail.putIfAbsent(user.getEmail(), user);
+      }
+    }
+    return users;
+  }
+  
+  ExpatUser getByUsername(String username) throws MigrationException {
+    ExpatUser user = byUsername.get(username);
+    if (user == null) {
+      throw new MigrationException("Could not find user " + username + " with an address and an organization");
+    }
+    return user;
+  }
+  
+  ExpatUser getByEmail(String email) throws MigrationException {
+    ExpatUser user = byEmail.get(email);
+    if (user == null) {
+      throw new MigrationException("Could not find user " + email + " with an address and an organization");
+    }
+    return user;
+  }
+  
+  int size() {
+    return byUsername.size();
+  }
+}
@@ -16,58 +16,95 @@
  */
 package io.hops.hopsworks.expat.migrations.x509;
 
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
-import io.hops.hopsworks.common.util.ProcessDescriptor;
 import io.hops.hopsworks.expat.configuration.ConfigurationBuilder;
 import io.hops.hopsworks.expat.configuration.ExpatConf;
 import io.hops.hopsworks.expat.db.DbConnectionFactory;
-import io.hops.hopsworks.expat.executor.ProcessExecutor;
+import io.hops.hopsworks.expat.executor.Pipeline;
 import io.hops.hopsworks.expat.migrations.MigrationException;
+import io.hops.hopsworks.expat.migrations.ReportingStep;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public abstract class GenerateCertificates {
+public abstract class GenerateCertificates implements ReportingStep {
   private static final Logger LOGGER = LogManager.getLogger(GenerateCertificates.class);
-  
-  private final static String GET_USER_BY_USERNAME = "SELECT * FROM users WHERE username = ?";
-  private final static String GET_USER_BY_EMAIL = "SELECT * FROM users WHERE email = ?";
-  private final static String GET_ADDRESS_BY_UID = "SELECT * FROM address WHERE uid = ?";
-  private final static String GET_ORGANIZATION_BY_UID = "SELECT * FROM organization WHERE uid = ?";
+  private static final String BACKUP_DIR_INFIX = "_certs_backup_";
+  private static final String SKIPPED = "skipped";
+  private static final String FILES_BACKED_UP = "filesBackedUp";
+  private static final String FILES_RESTORED = "filesRestored";
+  private static final String ROWS_RESTORED = "rowsRestored";
+  private static final String INSPECTED = "inspected";
+  private static final String COMPLIANT = "compliant";
+  private static final String REGENERATE_PREFIX = "regenerate";
   
   protected Path certsBackupDir;
+  private CertificateBackupStore backupStore;
   protected Configuration config;
   protected Path masterPwdPath;
   protected String intermediateCA;
   protected String masterPassword;
   protected String userCertsScript;
+  protected int generationThreads;
+  protected int persistChunkSize;
+  protected CertificateProgress progress;
+  protected boolean replacedRevoked = false;
+  // Ids of the certificates failing the regenerate criteria, null to regenerate all
+  private Set<String> selected;
+  protected CertificateGenerator generator;
   protected Connection connection;
+  protected final StepMetrics metrics = new StepMetrics();
+  
+  @Override
+  public StepMetrics getMetrics() {
+    return metrics;
+  }
   
   protected void setup(String backupDirPrefix)
       throws MigrationException, ConfigurationException, IOException, SQLException {
-    String userHome = System.getProperty("user.home");
-    if (userHome == null) {
-      throw new MigrationException("Could not get user home");
-    }
+    String userHome = getUserHome();
     LocalDateTime now = LocalDateTime.now();
-    certsBackupDir = Paths.get(userHome, backupDirPrefix + "_certs_backup_" + now.toString());
+    try {
+      progress = CertificateProgress.open(progressFile(userHome, backupDirPrefix),
+          Paths.get(userHome, backupDirPrefix + BACKUP_DIR_INFIX + now.toString()));
+    } catch (IOException ex) {
+      throw new MigrationException("Could not open certificates progress file", ex);
+    }
+    certsBackupDir = progress.getBackupDir();
+    if (progress.isResumed()) {
+      LOGGER.info("Resuming unfinished run with backup dir " + certsBackupDir + ", " + progress.doneCount()
+          + " certificates are already stored");
+    }
   
     try {
       FileUtils.forceMkdir(certsBackupDir.toFile());
@@ -75,140 +112,406 @@ public abstract class GenerateCertificates {
       throw new MigrationException("Could not create certs backup directory", ex);
     }
     
-    config = ConfigurationBuilder.getConfiguration();
+    configure();
     masterPwdPath = Paths.get(config.getString(ExpatConf.MASTER_PWD_FILE_KEY));
-    intermediateCA = config.getString(ExpatConf.INTERMEDIATE_CA_PATH);
     masterPassword = Files.toString(masterPwdPath.toFile(), Charset.defaultCharset());
     userCertsScript = config.getString(ExpatConf.CREATE_USER_CERT_SCRIPT);
+    generator = createGenerator();
+    generationThreads = config.getInt(ExpatConf.CERTS_GENERATION_THREADS, generator.defaultThreads());
+    int maxThreads = generator.maxThreads();
+    if (generationThreads < 1 || generationThreads > maxThreads) {
+      LOGGER.warn(ExpatConf.CERTS_GENERATION_THREADS + " must be between 1 and " + maxThreads + ", was "
+          + generationThreads);
+      generationThreads = Math.max(1, Math.min(generationThreads, maxThreads));
+    }
+    
+    // A resumed run keeps the snapshot of the first one, the rows have been partly updated since
+    File snapshot = certsBackupDir.resolve(CertificateSnapshot.FILE).toFile();
+    if (!snapshot.exists()) {
+      LOGGER.info("Taking a snapshot of the current certificates in " + snapshot);
+      int rows = CertificateSnapshot.write(connection, getSnapshotQuery(), snapshot.toPath());
+      LOGGER.info("Snapshot of " + rows + " certificates taken");
+    }
+  }
+  
+  private void configure() throws ConfigurationException, SQLException {
+    config = ConfigurationBuilder.getConfiguration();
+    intermediateCA = config.getString(ExpatConf.INTERMEDIATE_CA_PATH);
+    persistChunkSize = Math.max(1, config.getInt(ExpatConf.CERTS_PERSIST_CHUNK_SIZE,
+        ExpatConf.CERTS_PERSIST_CHUNK_SIZE_DEFAULT));
     connection = DbConnectionFactory.getConnection();
   }
   
-  protected void generateNewCertsAndUpdateDb(Map<ExpatCertificate, ExpatUser> certificates, String print)
-      throws SQLException, IOException {
-    int total = certificates.size();
-    LOGGER.info("Going to regenerate " + total + " certificates");
-    LOGGER.info("Start generating new " + print + " Certificates");
-    int idx = 1;
-    for (Map.Entry<ExpatCertificate, ExpatUser> entry : certificates.entrySet()) {
-      generateCertificate(entry.getKey(), entry.getValue(), idx, total);
-      idx++;
+  private String getUserHome() throws MigrationException {
+    String userHome = System.getProperty("user.home");
+    if (userHome == null) {
+      throw new MigrationException("Could not get user home");
     }
-    LOGGER.info("Start updating certificates");
-    updateCertificatesInDB(certificates.keySet(), connection);
+    return userHome;
   }
   
-  private void generateCertificate(ExpatCertificate userCert, ExpatUser user, int idx, int total) throws IOException {
-    // Move previous certificates for backup
-    String id = userCert.getProjectName() + "__" + userCert.getUsername();
-    LOGGER.info("Generating new certificate for " + userCert);
-    
-    String certId = id + ".cert.pem";
-    File oldCert = Paths.get(intermediateCA, "certs", certId).toFile();
-    File backupCert = Paths.get(certsBackupDir.toString(), certId).toFile();
-    String keyId = id + ".key.pem";
-    File oldKey = Paths.get(intermediateCA, "private", keyId).toFile();
-    File backupKey = Paths.get(certsBackupDir.toString(), keyId).toFile();
-    
-    if (oldCert.exists()) {
-      FileUtils.moveFile(oldCert, backupCert);
+  private Path progressFile(String userHome, String backupDirPrefix) {
+    return Paths.get(userHome, backupDirPrefix + "_certs_progress");
+  }
+  
+  /**
+   * Puts back the files and database rows of the certificates replaced by the latest run, from
+   * its backup directory. Files are moved back in parallel and rows are restored in batches from
+   * the snapshot.
+   *
+   * @return false if the latest run left no snapshot to restore from
+   * @throws MigrationException if the certificates of the latest run have been revoked
+   */
+  protected boolean restoreFromBackup(String backupDirPrefix)
+      throws MigrationException, ConfigurationException, SQLException, IOException {
+    String userHome = getUserHome();
+    Path progressFile = progressFile(userHome, backupDirPrefix);
+    Path backupDir;
+    if (progressFile.toFile().exists()) {
+      backupDir = CertificateProgress.readBackupDir(progressFile);
+    } else {
+      backupDir = findLatestBackupDir(userHome, backupDirPrefix);
     }
-    if (oldKey.exists()) {
-      FileUtils.moveFile(oldKey, backupKey);
+    if (backupDir == null) {
+      return false;
+    }
+    File snapshot = backupDir.resolve(CertificateSnapshot.FILE).toFile();
+    if (!snapshot.exists()) {
+      if (backupDir.resolve(CertificateSnapshot.RESTORED_FILE).toFile().exists()) {
+        LOGGER.info("Certificates have already been restored from " + backupDir);
+        return true;
+      }
+      return false;
+    }
+    if (CertificateRevoker.isRevoked(backupDir)) {
+      throw new MigrationException("The certificates in " + backupDir + " have been revoked, restoring them "
+          + "would leave users with revoked certificates. Regenerate the certificates instead");
     }
     
-    // Generate certificate
-    ProcessDescriptor processDescriptor = new ProcessDescriptor.Builder()
-        .addCommand("/usr/bin/sudo")
-        .addCommand(Paths.get(intermediateCA, userCertsScript).toString())
-        .addCommand(id)
-        .addCommand(user.getCountry())
-        .addCommand(user.getCity())
-        .addCommand(user.getOrganization())
-        .addCommand(user.getEmail())
-        .addCommand(user.getOrcid())
-        .addCommand(userCert.getPlainPassword())
-        .ignoreOutErrStreams(true)
-        .build();
-    
-    ProcessExecutor.getExecutor().execute(processDescriptor);
+    configure();
+    LOGGER.info("Restoring certificates from " + backupDir);
+    restoreFiles(backupDir);
+    int rows = CertificateSnapshot.restore(snapshot.toPath(), connection, getRestoreUpdate(), persistChunkSize);
+    metrics.add(ROWS_RESTORED, rows);
+    LOGGER.info("Restored " + rows + " certificates in the database");
     
-    File keyStoreFile = Paths.get("/tmp", id + "__kstore.jks").toFile();
-    File trustStoreFile = Paths.get("/tmp", id + "__tstore.jks").toFile();
-    byte[] keyStore, trustStore;
-    try (FileInputStream fis = new FileInputStream(keyStoreFile)) {
-      keyStore = ByteStreams.toByteArray(fis);
-    }
-    try (FileInputStream fis = new FileInputStream(trustStoreFile)) {
-      trustStore = ByteStreams.toByteArray(fis);
+    FileUtils.moveFile(snapshot, backupDir.resolve(CertificateSnapshot.RESTORED_FILE).toFile());
+    FileUtils.deleteQuietly(progressFile.toFile());
+    return true;
+  }
+  
+  static Path findLatestBackupDir(String userHome, String backupDirPrefix) {
+    String prefix = backupDirPrefix + BACKUP_DIR_INFIX;
+    File[] dirs = new File(userHome).listFiles(f -> f.isDirectory() && f.getName().startsWith(prefix));
+    Path latest = null;
+    LocalDateTime latestTime = null;
+    if (dirs != null) {
+      for (File dir : dirs) {
+        try {
+          LocalDateTime time = LocalDateTime.parse(dir.getName().substring(prefix.length()));
+          if (latestTime == null || time.isAfter(latestTime)) {
+            latestTime = time;
+            latest = dir.toPath();
+          }
+        } catch (DateTimeParseException ex) {
+          LOGGER.debug("Ignoring " + dir + ", not a certificates backup dir");
+        }
+      }
     }
-    userCert.setKeyStore(keyStore);
-    userCert.setTrustStore(trustStore);
-    LOGGER.info("Finished generating new certificate for " + userCert + " - " + idx + "/" + total);
+    return latest;
   }
   
-  protected ExpatUser getExpatUserByUsername(String username) throws SQLException {
-    PreparedStatement stmt = connection.prepareStatement(GET_USER_BY_USERNAME);
-    stmt.setString(1, username);
-    return getExpatUser(stmt);
+  private void restoreFiles(Path backupDir) throws MigrationException {
+    try {
+      int files = CertificateBackupStore.open(backupDir, Paths.get(intermediateCA))
+          .restoreAll(Runtime.getRuntime().availableProcessors());
+      metrics.add(FILES_RESTORED, files);
+      LOGGER.info("Restored " + files + " certificate files");
+    } catch (IOException ex) {
+      throw new MigrationException("Could not restore certificate files", ex);
+    }
   }
+
   
-  protected ExpatUser getExpatUserByEmail(String email) throws SQLException {
-    PreparedStatement stmt = connection.prepareStatement(GET_USER_BY_EMAIL);
-    stmt.setString(1, email);
-    return getExpatUser(stmt);
+  private CertificateGenerator createGenerator() throws ConfigurationException, IOException {
+    String generator = config.getString(ExpatConf.CERTS_GENERATOR, ExpatConf.CERTS_GENERATOR_SCRIPT);
+    if (ExpatConf.CERTS_GENERATOR_SCRIPT.equals(generator)) {
+      return new ScriptCertificateGenerator(intermediateCA, userCertsScript);
+    } else if (ExpatConf.CERTS_GENERATOR_JVM.equals(generator)) {
+      LOGGER.info("Loading intermediate CA from " + intermediateCA);
+      return new JvmCertificateGenerator(Paths.get(intermediateCA), config.getString(ExpatConf.INTERMEDIATE_CA_KEY_PWD),
+          config.getInt(ExpatConf.CERTS_KEY_SIZE, ExpatConf.CERTS_KEY_SIZE_DEFAULT),
+          config.getLong(ExpatConf.CERTS_VALIDITY_DAYS, ExpatConf.CERTS_VALIDITY_DAYS_DEFAULT),
+          config.getInt(ExpatConf.CERTS_KEY_POOL_THREADS, Runtime.getRuntime().availableProcessors()),
+          config.getInt(ExpatConf.CERTS_KEY_POOL_SIZE, ExpatConf.CERTS_KEY_POOL_SIZE_DEFAULT));
+    }
+    throw new ConfigurationException("Unknown certificate generator " + generator + ", expected "
+        + ExpatConf.CERTS_GENERATOR_SCRIPT + " or " + ExpatConf.CERTS_GENERATOR_JVM);
   }
   
-  private ExpatUser getExpatUser(PreparedStatement stmt) throws SQLException {
-    PreparedStatement addressStmt = null, orgStmt = null;
-    ResultSet userRS = null, addressRS = null, orgRS = null;
-    
+  /**
+   * Runs the x509.regenerate criteria over the current key stores, in parallel, and keeps the ids
+   * of the certificates that fail them. Without criteria every certificate is regenerated.
+   *
+   * @param query returning the certificate id and its key store
+   */
+  protected void inspectCertificates(String query) throws MigrationException {
+    CertificateInspector inspector = CertificateInspector.fromConfig(config);
+    if (inspector == null) {
+      return;
+    }
+    LOGGER.info("Inspecting existing certificates");
+    Set<String> toRegenerate = ConcurrentHashMap.newKeySet();
+    int threads = Runtime.getRuntime().availableProcessors();
+    Pipeline<Map.Entry<String, byte[]>, String> pipeline = new Pipeline<>("CertificateInspector", threads, 1,
+        threads * 4);
     try {
-      userRS = stmt.executeQuery();
-      userRS.next();
-      Integer uid = userRS.getInt("uid");
-      String email = userRS.getString("email");
-      String orcid = userRS.getString("orcid");
-      String userPassword = userRS.getString("password");
-      String username = userRS.getString("username");
-    
-      addressStmt = connection.prepareStatement(GET_ADDRESS_BY_UID);
-      addressStmt.setInt(1, uid);
-      addressRS = addressStmt.executeQuery();
-      addressRS.next();
-      String country = addressRS.getString("country");
-      String city = addressRS.getString("city");
-    
-    
-      orgStmt = connection.prepareStatement(GET_ORGANIZATION_BY_UID);
-      orgStmt.setInt(1, uid);
-      orgRS = orgStmt.executeQuery();
-      orgRS.next();
-      String organization = orgRS.getString("org_name");
+      pipeline.run(emitter -> {
+        try (Statement stmt = connection.createStatement();
+             ResultSet certsRS = stmt.executeQuery(query)) {
+          while (certsRS.next()) {
+            emitter.emit(new AbstractMap.SimpleImmutableEntry<>(certsRS.getString(1), certsRS.getBytes(2)));
+          }
+        }
+      }, certificate -> {
+        metrics.increment(INSPECTED);
+        String reason = inspector.inspect(certificate.getValue());
+        if (reason == null) {
+          metrics.increment(COMPLIANT);
+          return null;
+        }
+        LOGGER.debug("Certificate " + certificate.getKey() + " fails the " + reason + " criterion");
+        metrics.increment(REGENERATE_PREFIX + Character.toUpperCase(reason.charAt(0)) + reason.substring(1));
+        return certificate.getKey();
+      }, toRegenerate::add);
+    } catch (ExecutionException ex) {
+      throw new MigrationException("Could not inspect existing certificates", ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while inspecting existing certificates", ex);
+    }
+    LOGGER.info(toRegenerate.size() + " out of " + metrics.get(INSPECTED) + " certificates need to be regenerated");
+    selected = toRegenerate;
+  }
+  
+  /**
+   * @return whether the certificate fails the regenerate criteria
+   */
+  protected boolean isSelected(ExpatCertificate certificate) {
+    return selected == null || selected.contains(certificateId(certificate));
+  }
+  
+  /**
+   * Lets the generator start working on the certificates of the table that will be regenerated,
+   * while they are being read.
+   */
+  protected void prepareGenerator(String certificatesTable) throws SQLException {
+    int certificates;
+    if (selected != null) {
+      certificates = 0;
+      for (String id : selected) {
+        if (!progress.isDone(id)) {
+          certificates++;
+        }
+      }
+    } else {
+      try (Statement stmt = connection.createStatement();
+           ResultSet countRS = stmt.executeQuery("SELECT COUNT(*) FROM " + certificatesTable)) {
+        countRS.next();
+        certificates = Math.max(0, countRS.getInt(1) - progress.doneCount());
+      }
+    }
+    generator.prepare(certificates, metrics);
+  }
+  
+  protected void closeGenerator() {
+    if (generator != null) {
+      generator.close();
+    }
+  }
+  
+  /**
+   * Generates the certificates with x509.generationThreads concurrent workers and stores them in
+   * the database x509.persistChunkSize at a time, recording them in the progress file. At most a
+   * chunk and the certificates being generated are held in memory with their stores.
+   *
+   * The previous files of all the certificates are first backed up in bulk by a
+   * {@link CertificateBackupStore}. Certificates stored by a previous unfinished run are skipped. A
+   * certificate that fails is logged and its previous files are put back, the others are still
+   * stored. The step fails at the end if any certificate could not be generated, and a rerun only
+   * regenerates the missing ones.
+   */
+  protected void generateNewCertsAndUpdateDb(Map<ExpatCertificate, ExpatUser> certificates, String print)
+      throws SQLException, MigrationException {
+    int total = certificates.size();
+    LOGGER.info("Going to regenerate " + total + " certificates");
+    LOGGER.info("Start generating new " + print + " Certificates with " + generationThreads + " workers");
     
+    backupFiles(certificates.keySet());
     
-      return new ExpatUser(uid, username, userPassword, email, orcid, organization, country, city);
-    } finally {
-      if (userRS != null) {
-        userRS.close();
-      }
-      if (addressRS != null) {
-        addressRS.close();
+    ExecutorService workers = Executors.newFixedThreadPool(generationThreads,
+        new DaemonThreadFactory("CertificateGenerator"));
+    Deque<Map.Entry<ExpatCertificate, Future<?>>> pending = new ArrayDeque<>();
+    Set<ExpatCertificate> chunk = new LinkedHashSet<>();
+    List<ExpatCertificate> failed = new ArrayList<>();
+    int window = persistChunkSize + generationThreads;
+    int collected = 0;
+    try {
+      for (Map.Entry<ExpatCertificate, ExpatUser> entry : certificates.entrySet()) {
+        if (progress.isDone(certificateId(entry.getKey()))) {
+          metrics.increment(SKIPPED);
+          collected++;
+          continue;
+        }
+        Future<?> task = workers.submit(() -> {
+          generateCertificate(entry.getKey(), entry.getValue());
+          return null;
+        });
+        pending.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), task));
+        while (pending.size() >= window) {
+          collect(pending.poll(), ++collected, total, chunk, failed);
+        }
       }
-      if (orgRS != null) {
-        orgRS.close();
+      while (!pending.isEmpty()) {
+        collect(pending.poll(), ++collected, total, chunk, failed);
       }
-      if (stmt != null) {
-        stmt.close();
+      persist(chunk);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException("Interrupted while generating " + print + " certificates", ex);
+    } finally {
+      workers.shutdownNow();
+    }
+    
+    if (!failed.isEmpty()) {
+      throw new MigrationException("Could not generate " + failed.size() + " out of " + total + " " + print
+          + " certificates: " + failed);
+    }
+    try {
+      progress.finish();
+    } catch (IOException ex) {
+      LOGGER.warn("Could not remove certificates progress file", ex);
+    }
+    if (config.getBoolean(ExpatConf.CERTS_REVOKE_AFTER_MIGRATION, false)) {
+      revokeReplaced();
+    }
+  }
+  
+  // Backs up the files of all the certificates still to generate in one pass, a resumed run keeps
+  // the backups of the first one
+  private void backupFiles(Set<ExpatCertificate> certificates) throws MigrationException {
+    List<String> ids = new ArrayList<>(certificates.size());
+    for (ExpatCertificate certificate : certificates) {
+      String id = certificateId(certificate);
+      if (!progress.isDone(id)) {
+        ids.add(id);
       }
-      if (addressStmt != null) {
-        addressStmt.close();
+    }
+    try {
+      backupStore = CertificateBackupStore.open(certsBackupDir, Paths.get(intermediateCA));
+      metrics.add(FILES_BACKED_UP, backupStore.backup(ids, Runtime.getRuntime().availableProcessors()));
+    } catch (IOException ex) {
+      throw new MigrationException("Could not back up certificate files to " + certsBackupDir, ex);
+    }
+  }
+  
+  // The certificates are already stored, a failure here leaves the revocation to be done manually
+  private void revokeReplaced() {
+    try {
+      CertificateRevoker.fromConfig(config).revoke(Collections.singletonList(certsBackupDir));
+      replacedRevoked = true;
+    } catch (IOException ex) {
+      LOGGER.error("Could not revoke the replaced certificates in " + certsBackupDir, ex);
+    }
+  }
+  
+  // Waits for a certificate in submission order and stores the chunk when it is full
+  private void collect(Map.Entry<ExpatCertificate, Future<?>> task, int idx, int total,
+      Set<ExpatCertificate> chunk, List<ExpatCertificate> failed)
+      throws InterruptedException, SQLException, MigrationException {
+    try {
+      task.getValue().get();
+      chunk.add(task.getKey());
+      metrics.increment(StepMetrics.PROCESSED);
+      LOGGER.info("Finished generating new certificate for " + task.getKey() + " - " + idx + "/" + total);
+    } catch (ExecutionException ex) {
+      failed.add(task.getKey());
+      metrics.increment(StepMetrics.FAILED);
+      LOGGER.error("Could not generate certificate for " + task.getKey() + " - " + idx + "/" + total,
+          ex.getCause());
+    }
+    if (chunk.size() >= persistChunkSize) {
+      persist(chunk);
+    }
+  }
+  
+  private void persist(Set<ExpatCertificate> chunk) throws SQLException, MigrationException {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Storing " + chunk.size() + " certificates");
+    updateCertificatesInDB(chunk, connection);
+    List<String> ids = new ArrayList<>(chunk.size());
+    for (ExpatCertificate certificate : chunk) {
+      ids.add(certificateId(certificate));
+      // Stored, the stores are not needed anymore
+      certificate.setKeyStore(null);
+      certificate.setTrustStore(null);
+    }
+    try {
+      progress.markDone(ids);
+    } catch (IOException ex) {
+      throw new MigrationException("Could not record stored certificates in the progress file", ex);
+    }
+    chunk.clear();
+    generator.chunkStored();
+  }
+  
+  private String certificateId(ExpatCertificate certificate) {
+    return certificate.getProjectName() + "__" + certificate.getUsername();
+  }
+  
+  private void generateCertificate(ExpatCertificate userCert, ExpatUser user) throws IOException {
+    String id = certificateId(userCert);
+    LOGGER.info("Generating new certificate for " + userCert);
+    
+    // The previous files are in the backup store, possibly hard linked. Unlink them so the new ones
+    // are not written through to the backup
+    for (String file : CertificateBackupStore.files(id)) {
+      File current = Paths.get(intermediateCA, file).toFile();
+      if (current.exists()) {
+        FileUtils.forceDelete(current);
       }
-      if (orgStmt != null) {
-        orgStmt.close();
+    }
+    
+    try {
+      generator.generate(id, userCert, user);
+    } catch (IOException | RuntimeException ex) {
+      // Leave the intermediate CA as it was for this certificate
+      try {
+        backupStore.restore(id);
+      } catch (IOException restoreEx) {
+        ex.addSuppressed(restoreEx);
       }
+      throw ex;
     }
   }
   
+  protected ExpatUsers loadUsers(String condition) throws SQLException {
+    long start = System.currentTimeMillis();
+    ExpatUsers users = ExpatUsers.load(connection, condition);
+    LOGGER.info("Loaded " + users.size() + " users in " + (System.currentTimeMillis() - start) + "ms");
+    return users;
+  }
+  
+  /**
+   * @return query for the current state of the certificates, with the columns in the order of the
+   * parameters of {@link #getRestoreUpdate()}
+   */
+  abstract String getSnapshotQuery();
+  
+  abstract String getRestoreUpdate();
+  
   abstract void updateCertificatesInDB(Set<ExpatCertificate> certificates, Connection connection)
       throws SQLException;
 }
@@ -17,6 +17,7 @@
 package io.hops.hopsworks.expat.migrations.x509;
 
 import io.hops.hopsworks.common.util.HopsUtils;
+import io.hops.hopsworks.expat.migrations.DependsOn;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
 import io.hops.hopsworks.expat.migrations.RollbackException;
@@ -34,10 +35,17 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
+// Both steps sign with the intermediate CA, they must not update its database concurrently
+@DependsOn(GenerateUserCertificates.class)
 public class GenerateProjectCertificates extends GenerateCertificates implements MigrateStep {
   private static final Logger LOGGER = LogManager.getLogger(GenerateProjectCertificates.class);
-  private static final String SELECT_PROJECT_CERTS = "SELECT * FROM projectgenericuser_certs";
-  private static final String SELECT_PROJECT_BY_NAME = "SELECT * FROM project WHERE projectname = ?";
+  static final String BACKUP_DIR_PREFIX = "ProjectCertificates";
+  private static final String SELECT_PROJECT_CERTS = "SELECT project_generic_username FROM projectgenericuser_certs";
+  private static final String SELECT_PROJECT_OWNERS = "SELECT projectname, username FROM project";
+  private static final String INSPECT_PROJECT_CERTS = "SELECT CONCAT(SUBSTRING_INDEX(project_generic_username, "
+      + "'__', 1), '__PROJECTGENERICUSER'), pgu_key FROM projectgenericuser_certs";
+  private final static String SNAPSHOT_PROJECT_CERTS = "SELECT pgu_key, pgu_cert, cert_password, " +
+      "project_generic_username FROM projectgenericuser_certs";
   private final static String UPDATE_PROJECT_CERTS = "UPDATE projectgenericuser_certs SET pgu_key = ?, " +
       "pgu_cert = ?, cert_password = ? WHERE project_generic_username = ?";
   
@@ -46,16 +54,26 @@ public class GenerateProjectCertificates extends GenerateCertificates implements
   public void migrate() throws MigrationException {
     try {
       // Important!
-      setup("ProjectCertificates");
+      setup(BACKUP_DIR_PREFIX);
       
+      inspectCertificates(INSPECT_PROJECT_CERTS);
+      prepareGenerator("projectgenericuser_certs");
       LOGGER.info("Getting all Project Certificates");
       Map<ExpatCertificate, ExpatUser> projectCerts = getProjectCerts();
       
       generateNewCertsAndUpdateDb(projectCerts, "Project Generic");
   
       LOGGER.info("Finished migration of User Certificates.");
-      LOGGER.info(">>> You should revoke certificates and clean manually backup dir with previous certs: " +
-          certsBackupDir.toString());
+      if (replacedRevoked) {
+        LOGGER.info(">>> Previous certificates have been revoked, clean manually backup dir: " +
+            certsBackupDir.toString());
+      } else {
+        LOGGER.info(">>> You should revoke certificates and clean manually backup dir with previous certs: " +
+            certsBackupDir.toString());
+      }
+    } catch (MigrationException ex) {
+      LOGGER.error(ex.getMessage(), ex);
+      throw ex;
     } catch (ConfigurationException | SQLException ex) {
       String errorMsg = "Could not initialize database connection";
       LOGGER.error(errorMsg, ex);
@@ -68,13 +86,16 @@ public class GenerateProjectCertificates extends GenerateCertificates implements
       String errorMsg = "Could not decrypt user password";
       LOGGER.error(errorMsg, ex);
       throw new MigrationException(errorMsg, ex);
+    } finally {
+      closeGenerator();
     }
   }
   
   private Map<ExpatCertificate, ExpatUser> getProjectCerts() throws Exception {
+    Map<String, String> projectOwners = getProjectOwners();
+    ExpatUsers users = loadUsers("WHERE u.email IN (SELECT username FROM project)");
     Map<ExpatCertificate, ExpatUser> projectCerts = new HashMap<>();
-    ResultSet certsRS = null, projectRS = null;
-    PreparedStatement projectStmt = null;
+    ResultSet certsRS = null;
     Statement certsStmt = connection.createStatement();
     try {
       certsRS = certsStmt.executeQuery(SELECT_PROJECT_CERTS);
@@ -86,32 +107,23 @@ public class GenerateProjectCertificates extends GenerateCertificates implements
         }
         String projectName = tokens[0];
         ExpatCertificate cert = new ExpatCertificate(projectName, "PROJECTGENERICUSER");
+        if (!isSelected(cert)) {
+          continue;
+        }
   
         LOGGER.info("Processing: " + projectGenericUN + " <" + tokens[0] + ", " + tokens[1] + ">");
         // Get owner of the project
-        try {
-          projectStmt = connection.prepareStatement(SELECT_PROJECT_BY_NAME);
-          projectStmt.setString(1, projectName);
-          projectRS = projectStmt.executeQuery();
-          if (!projectRS.next()) {
-            LOGGER.warn("Could not find project " + projectName);
-            continue;
-          }
-          String ownerEmail = projectRS.getString("username");
-          ExpatUser user = getExpatUserByEmail(ownerEmail);
-          cert.setPlainPassword(HopsUtils.randomString(64));
-          String cipherPassword = HopsUtils.encrypt(user.getPassword(), cert.getPlainPassword(), masterPassword);
-          cert.setCipherPassword(cipherPassword);
-          
-          projectCerts.put(cert, user);
-        } finally {
-          if (projectRS != null) {
-            projectRS.close();
-          }
-          if (projectStmt != null) {
-            projectStmt.close();
-          }
+        String ownerEmail = projectOwners.get(projectName);
+        if (ownerEmail == null) {
+          LOGGER.warn("Could not find project " + projectName);
+          continue;
         }
+        ExpatUser user = users.getByEmail(ownerEmail);
+        cert.setPlainPassword(HopsUtils.randomString(64));
+        String cipherPassword = HopsUtils.encrypt(user.getPassword(), cert.getPlainPassword(), masterPassword);
+        cert.setCipherPassword(cipherPassword);
+        
+        projectCerts.put(cert, user);
       }
       return projectCerts;
     } finally {
@@ -124,8 +136,30 @@ public class GenerateProjectCertificates extends GenerateCertificates implements
     }
   }
   
+  private Map<String, String> getProjectOwners() throws SQLException {
+    Map<String, String> owners = new HashMap<>();
+    try (Statement stmt = connection.createStatement();
+         ResultSet projectsRS = stmt.executeQuery(SELECT_PROJECT_OWNERS)) {
+      while (projectsRS.next()) {
+        owners.put(projectsRS.getString("projectname"), projectsRS.getString("username"));
+      }
+    }
+    return owners;
+  }
+  
   @Override
   public void rollback() throws RollbackException {
+    try {
+      if (restoreFromBackup(BACKUP_DIR_PREFIX)) {
+        LOGGER.info("Finished rollback of Project Certificates");
+        return;
+      }
+    } catch (MigrationException | ConfigurationException | SQLException | IOException ex) {
+      String errorMsg = "Could not restore Project Certificates from backup";
+      LOGGER.error(errorMsg, ex);
+      throw new RollbackException(errorMsg, ex);
+    }
+    LOGGER.warn("No backup of a previous run to restore from, generating new Project Certificates");
     try {
       migrate();
     } catch (MigrationException ex) {
@@ -133,6 +167,17 @@ public class GenerateProjectCertificates extends GenerateCertificates implements
     }
   }
   
+  @Override
+  String getSnapshotQuery() {
+    return SNAPSHOT_PROJECT_CERTS;
+  }
+  
+  @Override
+  String getRestoreUpdate() {
+    return UPDATE_PROJECT_CERTS;
+  }
+
+  
   void updateCertificatesInDB(Set<ExpatCertificate> certificates, Connection connection)
     throws SQLException {
     PreparedStatement updateStmt = null;
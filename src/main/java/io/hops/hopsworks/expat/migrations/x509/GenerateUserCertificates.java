@@ -17,9 +17,11 @@
 package io.hops.hopsworks.expat.migrations.x509;
 
 import io.hops.hopsworks.common.util.HopsUtils;
+import io.hops.hopsworks.expat.migrations.DependsOn;
 import io.hops.hopsworks.expat.migrations.MigrateStep;
 import io.hops.hopsworks.expat.migrations.MigrationException;
 import io.hops.hopsworks.expat.migrations.RollbackException;
+import io.hops.hopsworks.expat.migrations.kubernetes.CreateCertSecrets;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -35,9 +37,16 @@ import java.util.Map;
 import java.util.Set;
 
 
+// CreateCertSecrets reads user_certs, keep reading them before they are regenerated
+@DependsOn(CreateCertSecrets.class)
 public class GenerateUserCertificates extends GenerateCertificates implements MigrateStep {
   private static final Logger LOGGER = LogManager.getLogger(GenerateProjectCertificates.class);
-  private final static String SELECT_USER_CERTS = "SELECT * FROM user_certs";
+  static final String BACKUP_DIR_PREFIX = "UserCertificates";
+  private final static String SELECT_USER_CERTS = "SELECT projectname, username FROM user_certs";
+  private final static String INSPECT_USER_CERTS =
+      "SELECT CONCAT(projectname, '__', username), user_key FROM user_certs";
+  private final static String SNAPSHOT_USER_CERTS =
+      "SELECT user_key, user_cert, user_key_pwd, projectname, username FROM user_certs";
   private final static String UPDATE_USER_CERTS = "UPDATE user_certs SET user_key = ?, user_cert = ?, user_key_pwd = ?" +
       " WHERE projectname = ? && username = ?";
   
@@ -45,16 +54,26 @@ public class GenerateUserCertificates extends GenerateCertificates implements Mi
   public void migrate() throws MigrationException {
     try {
       // Important!
-      setup("UserCertificates");
+      setup(BACKUP_DIR_PREFIX);
       
+      inspectCertificates(INSPECT_USER_CERTS);
+      prepareGenerator("user_certs");
       LOGGER.info("Getting all User Certificates");
       Map<ExpatCertificate, ExpatUser> userCerts = getUserCerts();
       
       generateNewCertsAndUpdateDb(userCerts, "User");
       
       LOGGER.info("Finished migration of User Certificates.");
-      LOGGER.info(">>> You should revoke certificates and clean manually backup dir with previous certs: " +
-          certsBackupDir.toString());
+      if (replacedRevoked) {
+        LOGGER.info(">>> Previous certificates have been revoked, clean manually backup dir: " +
+            certsBackupDir.toString());
+      } else {
+        LOGGER.info(">>> You should revoke certificates and clean manually backup dir with previous certs: " +
+            certsBackupDir.toString());
+      }
+    } catch (MigrationException ex) {
+      LOGGER.error(ex.getMessage(), ex);
+      throw ex;
     } catch (ConfigurationException | SQLException ex) {
       String errorMsg = "Could not initialize database connection";
       LOGGER.error(errorMsg, ex);
@@ -67,11 +86,24 @@ public class GenerateUserCertificates extends GenerateCertificates implements Mi
       String errorMsg = "Could not decrypt user password";
       LOGGER.error(errorMsg, ex);
       throw new MigrationException(errorMsg, ex);
+    } finally {
+      closeGenerator();
     }
   }
   
   @Override
   public void rollback() throws RollbackException {
+    try {
+      if (restoreFromBackup(BACKUP_DIR_PREFIX)) {
+        LOGGER.info("Finished rollback of User Certificates");
+        return;
+      }
+    } catch (MigrationException | ConfigurationException | SQLException | IOException ex) {
+      String errorMsg = "Could not restore User Certificates from backup";
+      LOGGER.error(errorMsg, ex);
+      throw new RollbackException(errorMsg, ex);
+    }
+    LOGGER.warn("No backup of a previous run to restore from, generating new User Certificates");
     try {
       migrate();
     } catch (MigrationException ex) {
@@ -79,9 +111,21 @@ public class GenerateUserCertificates extends GenerateCertificates implements Mi
     }
   }
   
+  @Override
+  String getSnapshotQuery() {
+    return SNAPSHOT_USER_CERTS;
+  }
+  
+  @Override
+  String getRestoreUpdate() {
+    return UPDATE_USER_CERTS;
+  }
+
+  
   
   
   private Map<ExpatCertificate, ExpatUser> getUserCerts() throws Exception {
+    ExpatUsers users = loadUsers("WHERE u.username IN (SELECT username FROM user_certs)");
     Map<ExpatCertificate, ExpatUser> userCerts = new HashMap<>();
     ResultSet certsRS = null;
     Statement userCertsStmt = connection.createStatement();
@@ -93,7 +137,10 @@ public class GenerateUserCertificates extends GenerateCertificates implements Mi
         String username = certsRS.getString("username");
     
         ExpatCertificate cert = new ExpatCertificate(projectName, username);
-        ExpatUser user = getExpatUserByUsername(username);
+        if (!isSelected(cert)) {
+          continue;
+        }
+        ExpatUser user = users.getByUsername(username);
         cert.setPlainPassword(HopsUtils.randomString(64));
         String cipherPassword = HopsUtils.encrypt(user.getPassword(), cert.getPlainPassword(), masterPassword);
         cert.setCipherPassword(cipherPassword);
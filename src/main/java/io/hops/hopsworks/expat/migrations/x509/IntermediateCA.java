@@ -0,0 +1,222 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMEncryptedKeyPair;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8DecryptorProviderBuilder;
+import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The intermediate CA directory laid out for openssl ca: certs/intermediate.cert.pem,
+ * certs/ca-chain.cert.pem, private/intermediate.key.pem and the serial and index.txt database.
+ * The CA database is read and written in the formats openssl uses, so that the openssl tools keep
+ * working on it.
+ */
+class IntermediateCA {
+  // Index fields: status, expiry, revocation date[,reason], serial, file name, subject
+  static final int INDEX_STATUS = 0;
+  static final int INDEX_REVOCATION = 2;
+  static final int INDEX_SERIAL = 3;
+  
+  private final Path dir;
+  private final Provider provider = new BouncyCastleProvider();
+  private final X509Certificate certificate;
+  private final X509Certificate[] chain;
+  private final PrivateKey key;
+  
+  IntermediateCA(Path dir, String keyPassword) throws IOException {
+    this.dir = dir;
+    try {
+      List<X509Certificate> chain = readCertificates(dir.resolve("certs").resolve("ca-chain.cert.pem"));
+      if (chain.isEmpty()) {
+        throw new IOException("The certificate chain of the intermediate CA is empty");
+      }
+      this.chain = chain.toArray(new X509Certificate[0]);
+      this.certificate = readCertificates(dir.resolve("certs").resolve("intermediate.cert.pem")).get(0);
+      this.key = readPrivateKey(dir.resolve("private").resolve("intermediate.key.pem"), keyPassword);
+    } catch (GeneralSecurityException | OperatorCreationException | PKCSException ex) {
+      throw new IOException("Could not load the intermediate CA from " + dir, ex);
+    }
+  }
+  
+  Path getDir() {
+    return dir;
+  }
+  
+  Provider getProvider() {
+    return provider;
+  }
+  
+  X509Certificate getCertificate() {
+    return certificate;
+  }
+  
+  X509Certificate[] getChain() {
+    return chain;
+  }
+  
+  PrivateKey getKey() {
+    return key;
+  }
+  
+  BigInteger readSerial() throws IOException {
+    String serial = new String(Files.readAllBytes(dir.resolve("serial")), StandardCharsets.US_ASCII);
+    return new BigInteger(serial.trim(), 16);
+  }
+  
+  void writeSerial(BigInteger serial) throws IOException {
+    writeAtomically(dir.resolve("serial"), (toHex(serial) + "\n").getBytes(StandardCharsets.US_ASCII));
+  }
+  
+  void appendToIndex(X509Certificate cert, String subject) throws IOException {
+    String line = "V\t" + formatTime(cert.getNotAfter()) + "\t\t" + toHex(cert.getSerialNumber()) + "\tunknown\t"
+        + subject + "\n";
+    Files.write(dir.resolve("index.txt"), line.getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+  
+  List<String[]> readIndex() throws IOException {
+    List<String[]> entries = new ArrayList<>();
+    for (String line : Files.readAllLines(dir.resolve("index.txt"), StandardCharsets.UTF_8)) {
+      if (!line.isEmpty()) {
+        entries.add(line.split("\t", -1));
+      }
+    }
+    return entries;
+  }
+  
+  /**
+   * Replaces index.txt, keeping the previous one as index.txt.old like openssl does
+   */
+  void writeIndex(List<String[]> entries) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String[] entry : entries) {
+      sb.append(String.join("\t", entry)).append('\n');
+    }
+    Path index = dir.resolve("index.txt");
+    Files.copy(index, dir.resolve("index.txt.old"), StandardCopyOption.REPLACE_EXISTING);
+    writeAtomically(index, sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  // openssl writes serials as upper case hex with an even number of digits
+  static String toHex(BigInteger serial) {
+    String hex = serial.toString(16).toUpperCase();
+    return hex.length() % 2 == 0 ? hex : "0" + hex;
+  }
+  
+  // UTCTime as openssl writes it in the index
+  static String formatTime(Date time) {
+    SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(time);
+  }
+  
+  static Date parseTime(String time) throws ParseException {
+    // GeneralizedTime is used from 2050
+    SimpleDateFormat format = new SimpleDateFormat(time.length() > 13 ? "yyyyMMddHHmmss'Z'" : "yyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.parse(time);
+  }
+  
+  static void writePem(Path file, Object object) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII);
+         JcaPEMWriter pemWriter = new JcaPEMWriter(writer)) {
+      pemWriter.writeObject(object);
+    }
+  }
+  
+  static void writeAtomically(Path file, byte[] content) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(tmp, content);
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  static List<X509Certificate> readCertificates(Path file) throws IOException, GeneralSecurityException {
+    return readCertificates(Files.newBufferedReader(file, StandardCharsets.US_ASCII));
+  }
+  
+  static List<X509Certificate> readCertificates(Reader reader) throws IOException, GeneralSecurityException {
+    List<X509Certificate> certificates = new ArrayList<>();
+    JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+    try (PEMParser parser = new PEMParser(reader)) {
+      Object object;
+      while ((object = parser.readObject()) != null) {
+        if (object instanceof X509CertificateHolder) {
+          certificates.add(converter.getCertificate((X509CertificateHolder) object));
+        }
+      }
+    }
+    return certificates;
+  }
+  
+  private PrivateKey readPrivateKey(Path file, String password)
+      throws IOException, OperatorCreationException, PKCSException {
+    Object object;
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII);
+         PEMParser parser = new PEMParser(reader)) {
+      object = parser.readObject();
+    }
+    char[] passwordChars = password == null ? new char[0] : password.toCharArray();
+    JcaPEMKeyConverter converter = new JcaPEMKeyConverter().setProvider(provider);
+    if (object instanceof PEMEncryptedKeyPair) {
+      object = ((PEMEncryptedKeyPair) object).decryptKeyPair(
+          new JcePEMDecryptorProviderBuilder().setProvider(provider).build(passwordChars));
+    } else if (object instanceof PKCS8EncryptedPrivateKeyInfo) {
+      object = ((PKCS8EncryptedPrivateKeyInfo) object).decryptPrivateKeyInfo(
+          new JceOpenSSLPKCS8DecryptorProviderBuilder().setProvider(provider).build(passwordChars));
+    }
+    if (object instanceof PEMKeyPair) {
+      return converter.getKeyPair((PEMKeyPair) object).getPrivate();
+    } else if (object instanceof PrivateKeyInfo) {
+      return converter.getPrivateKey((PrivateKeyInfo) object);
+    }
+    throw new IOException("Could not find a private key in " + file);
+  }
+}
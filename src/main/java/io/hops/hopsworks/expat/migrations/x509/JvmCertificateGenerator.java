@@ -0,0 +1,249 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPKCS8Generator;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8EncryptorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues certificates in the JVM with the key of the intermediate CA, which is loaded once.
+ *
+ * The serial and index.txt files of the CA are kept up to date the way openssl ca does, so the
+ * certificates can later be revoked with the usual tools. Expat has to run as a user that can
+ * read the CA key and write to the CA directory.
+ *
+ * Key pairs are generated ahead of the certificates by a {@link KeyPairPool} when keyPoolThreads
+ * is positive.
+ */
+class JvmCertificateGenerator implements CertificateGenerator {
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  private static final String KEY_ALIAS = "own";
+  private static final String TRUSTED_ALIAS = "hops_root_ca";
+  
+  private final IntermediateCA ca;
+  private final int keySize;
+  private final long validityDays;
+  private final int keyPoolThreads;
+  private final int keyPoolSize;
+  private final JcaX509ExtensionUtils extensionUtils;
+  // Guards the serial and index files of the CA
+  private final Object caDatabaseLock = new Object();
+  private volatile KeyPairPool keyPairPool;
+  
+  JvmCertificateGenerator(Path intermediateCA, String caKeyPassword, int keySize, long validityDays,
+      int keyPoolThreads, int keyPoolSize) throws IOException {
+    this.ca = new IntermediateCA(intermediateCA, caKeyPassword);
+    this.keySize = keySize;
+    this.validityDays = validityDays;
+    this.keyPoolThreads = keyPoolThreads;
+    this.keyPoolSize = keyPoolSize;
+    try {
+      this.extensionUtils = new JcaX509ExtensionUtils();
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Could not initialize certificate extensions", ex);
+    }
+  }
+  
+  @Override
+  public void prepare(int certificates, StepMetrics metrics) {
+    close();
+    if (keyPoolThreads > 0 && certificates > 0) {
+      keyPairPool = new KeyPairPool(keySize, certificates, keyPoolSize, keyPoolThreads, metrics);
+    }
+  }
+  
+  @Override
+  public void generate(String id, ExpatCertificate certificate, ExpatUser user) throws IOException {
+    try {
+      KeyPairPool pool = keyPairPool;
+      KeyPair keyPair = pool != null ? pool.take() : KeyPairPool.generate(keySize);
+      
+      List<String[]> rdns = subject(id, user);
+      X509Certificate cert = sign(rdns, keyPair);
+      char[] password = certificate.getPlainPassword().toCharArray();
+      // Recorded in the CA database only once its files are in place, a failure leaves an unused serial
+      writeCertificateFiles(id, cert, keyPair.getPrivate(), password);
+      record(cert, rdns);
+      
+      X509Certificate[] caChain = ca.getChain();
+      Certificate[] chain = new Certificate[caChain.length + 1];
+      chain[0] = cert;
+      System.arraycopy(caChain, 0, chain, 1, caChain.length);
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      keyStore.load(null, null);
+      keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), password, chain);
+      certificate.setKeyStore(toBytes(keyStore, password));
+      
+      KeyStore trustStore = KeyStore.getInstance("JKS");
+      trustStore.load(null, null);
+      trustStore.setCertificateEntry(TRUSTED_ALIAS, caChain[caChain.length - 1]);
+      certificate.setTrustStore(toBytes(trustStore, password));
+    } catch (GeneralSecurityException | OperatorCreationException ex) {
+      throw new IOException("Could not generate certificate for " + id, ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a key pair for " + id);
+    }
+  }
+  
+  @Override
+  public int defaultThreads() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+  
+  @Override
+  public int maxThreads() {
+    return Integer.MAX_VALUE;
+  }
+  
+  @Override
+  public void close() {
+    KeyPairPool pool = keyPairPool;
+    keyPairPool = null;
+    if (pool != null) {
+      pool.close();
+    }
+  }
+  
+  private List<String[]> subject(String id, ExpatUser user) {
+    List<String[]> rdns = new ArrayList<>();
+    addRdn(rdns, "C", user.getCountry());
+    addRdn(rdns, "L", user.getCity());
+    addRdn(rdns, "O", user.getOrganization());
+    addRdn(rdns, "OU", user.getOrcid());
+    addRdn(rdns, "CN", id);
+    addRdn(rdns, "emailAddress", user.getEmail());
+    return rdns;
+  }
+  
+  // Takes the next serial of the CA
+  private X509Certificate sign(List<String[]> rdns, KeyPair keyPair)
+      throws IOException, GeneralSecurityException, OperatorCreationException {
+    X500NameBuilder subject = new X500NameBuilder(BCStyle.INSTANCE);
+    for (String[] rdn : rdns) {
+      subject.addRDN(BCStyle.INSTANCE.attrNameToOID(rdn[0]), rdn[1]);
+    }
+    X500Name subjectName = subject.build();
+    
+    Date notBefore = new Date();
+    Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(validityDays));
+    ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(ca.getKey());
+    
+    synchronized (caDatabaseLock) {
+      BigInteger serial = ca.readSerial();
+      JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(ca.getCertificate(), serial, notBefore,
+          notAfter, subjectName, keyPair.getPublic());
+      builder.addExtension(Extension.basicConstraints, false, new BasicConstraints(false));
+      builder.addExtension(Extension.keyUsage, true,
+          new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation | KeyUsage.keyEncipherment));
+      builder.addExtension(Extension.extendedKeyUsage, false,
+          new ExtendedKeyUsage(new KeyPurposeId[]{KeyPurposeId.id_kp_clientAuth, KeyPurposeId.id_kp_emailProtection}));
+      builder.addExtension(Extension.subjectKeyIdentifier, false,
+          extensionUtils.createSubjectKeyIdentifier(keyPair.getPublic()));
+      builder.addExtension(Extension.authorityKeyIdentifier, false,
+          extensionUtils.createAuthorityKeyIdentifier(ca.getCertificate()));
+      X509CertificateHolder holder = builder.build(signer);
+      X509Certificate cert = new JcaX509CertificateConverter().getCertificate(holder);
+      
+      ca.writeSerial(serial.add(BigInteger.ONE));
+      return cert;
+    }
+  }
+  
+  // Adds the certificate to the index of the CA, as openssl ca does once it has signed
+  private void record(X509Certificate cert, List<String[]> rdns) throws IOException {
+    StringBuilder opensslSubject = new StringBuilder();
+    for (String[] rdn : rdns) {
+      opensslSubject.append('/').append(rdn[0]).append('=').append(rdn[1]);
+    }
+    synchronized (caDatabaseLock) {
+      ca.appendToIndex(cert, opensslSubject.toString());
+      Path newCerts = ca.getDir().resolve("newcerts");
+      if (Files.isDirectory(newCerts)) {
+        IntermediateCA.writePem(newCerts.resolve(IntermediateCA.toHex(cert.getSerialNumber()) + ".pem"), cert);
+      }
+    }
+  }
+  
+  private void addRdn(List<String[]> rdns, String name, String value) {
+    if (value != null && !value.isEmpty()) {
+      rdns.add(new String[]{name, value});
+    }
+  }
+  
+  private void writeCertificateFiles(String id, X509Certificate cert, PrivateKey key, char[] password)
+      throws IOException, OperatorCreationException {
+    IntermediateCA.writePem(ca.getDir().resolve("certs").resolve(id + ".cert.pem"), cert);
+    
+    Path keyFile = ca.getDir().resolve("private").resolve(id + ".key.pem");
+    FileUtils.deleteQuietly(keyFile.toFile());
+    try {
+      Files.createFile(keyFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException ex) {
+      Files.createFile(keyFile);
+    }
+    JcaPKCS8Generator encryptedKey = new JcaPKCS8Generator(key,
+        new JceOpenSSLPKCS8EncryptorBuilder(JcaPKCS8Generator.AES_256_CBC)
+            .setProvider(ca.getProvider())
+            .setPasssword(password)
+            .build());
+    IntermediateCA.writePem(keyFile, encryptedKey);
+  }
+  
+  private byte[] toBytes(KeyStore store, char[] password) throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.store(out, password);
+    return out.toByteArray();
+  }
+}
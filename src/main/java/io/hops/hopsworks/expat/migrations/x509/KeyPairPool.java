@@ -0,0 +1,132 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates RSA key pairs ahead of time in background threads, so that key generation overlaps
+ * with reading the certificates from the database and with signing.
+ *
+ * The pool produces exactly as many key pairs as certificates it was created for, keeping at most
+ * capacity of them in memory. A take that finds the queue empty waits for the producers, or
+ * generates the key pair itself once they are finished.
+ */
+class KeyPairPool {
+  private static final Logger LOGGER = LogManager.getLogger(KeyPairPool.class);
+  
+  static final String PREGENERATED = "keyPairsPregenerated";
+  static final String WAITS = "keyPairWaits";
+  static final String WAIT_MS = "keyPairWaitMs";
+  static final String AVG_DEPTH = "keyPoolAvgDepth";
+  
+  private final int keySize;
+  private final BlockingQueue<KeyPair> queue;
+  private final AtomicInteger remaining;
+  private final AtomicInteger runningProducers;
+  private final ExecutorService producers;
+  private final StepMetrics metrics;
+  private long takes = 0;
+  private long depthSum = 0;
+  
+  KeyPairPool(int keySize, int keyPairs, int capacity, int threads, StepMetrics metrics) {
+    this.keySize = keySize;
+    this.metrics = metrics;
+    queue = new ArrayBlockingQueue<>(Math.max(1, Math.min(capacity, keyPairs)));
+    remaining = new AtomicInteger(keyPairs);
+    threads = Math.max(1, Math.min(threads, keyPairs));
+    runningProducers = new AtomicInteger(threads);
+    producers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("KeyPairPool"));
+    for (int i = 0; i < threads; i++) {
+      producers.submit(this::produce);
+    }
+    LOGGER.info("Pre-generating " + keyPairs + " key pairs with " + threads + " threads, keeping up to "
+        + queue.remainingCapacity() + " ready");
+  }
+  
+  static KeyPair generate(int keySize) throws GeneralSecurityException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+    keyPairGenerator.initialize(keySize);
+    return keyPairGenerator.generateKeyPair();
+  }
+  
+  KeyPair take() throws GeneralSecurityException, InterruptedException {
+    recordDepth();
+    KeyPair keyPair = queue.poll();
+    if (keyPair != null) {
+      return keyPair;
+    }
+    long start = System.nanoTime();
+    metrics.increment(WAITS);
+    try {
+      while (runningProducers.get() > 0) {
+        keyPair = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (keyPair != null) {
+          return keyPair;
+        }
+      }
+      // Producers are done, take what they left or generate it here
+      keyPair = queue.poll();
+      return keyPair != null ? keyPair : generate(keySize);
+    } finally {
+      metrics.add(WAIT_MS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+  
+  void close() {
+    producers.shutdownNow();
+    queue.clear();
+  }
+  
+  private synchronized void recordDepth() {
+    takes++;
+    depthSum += queue.size();
+    metrics.set(AVG_DEPTH, depthSum / takes);
+  }
+  
+  private void produce() {
+    try {
+      KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+      keyPairGenerator.initialize(keySize);
+      while (remaining.getAndDecrement() > 0) {
+        queue.put(keyPairGenerator.generateKeyPair());
+        metrics.increment(PREGENERATED);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (GeneralSecurityException | RuntimeException ex) {
+      LOGGER.warn("Could not pre-generate key pairs, they will be generated on demand", ex);
+    } finally {
+      runningProducers.decrementAndGet();
+    }
+  }
+}
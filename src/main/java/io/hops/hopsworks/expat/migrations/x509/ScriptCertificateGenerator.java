@@ -0,0 +1,164 @@
+/*
+ * This file is part of Expat
+ * Copyright (C) 2019, Logical Clocks AB. All rights reserved
+ *
+ * Expat is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU Affero General Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Expat is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package io.hops.hopsworks.expat.migrations.x509;
+
+import io.hops.hopsworks.common.util.ProcessDescriptor;
+import io.hops.hopsworks.common.util.ProcessResult;
+import io.hops.hopsworks.expat.executor.ProcessExecutor;
+import io.hops.hopsworks.expat.migrations.StepMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the user certificates script of the intermediate CA with sudo and reads the stores it
+ * leaves in /tmp. The stores are deleted as soon as they are read. Those owned by root are removed
+ * with a single sudo rm once their chunk is stored and when the generator is closed. The script signs with openssl ca, whose index and serial files are not safe to update
+ * concurrently, so it runs one generation at a time unless told otherwise.
+ */
+class ScriptCertificateGenerator implements CertificateGenerator {
+  private static final Logger LOGGER = LogManager.getLogger(ScriptCertificateGenerator.class);
+  private static final String STORES_LEFT = "storesLeft";
+  // Where createusercerts.sh writes the stores, the script does not take a directory
+  private static final Path KEYSTORE_DIR = Paths.get("/tmp");
+  
+  private final String intermediateCA;
+  private final String userCertsScript;
+  private final AtomicInteger storesLeft = new AtomicInteger();
+  // Stores that could not be deleted as the user running Expat
+  private final Queue<String> undeleted = new ConcurrentLinkedQueue<>();
+  private volatile StepMetrics metrics;
+  
+  ScriptCertificateGenerator(String intermediateCA, String userCertsScript) {
+    this.intermediateCA = intermediateCA;
+    this.userCertsScript = userCertsScript;
+  }
+  
+  @Override
+  public void prepare(int certificates, StepMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  @Override
+  public void generate(String id, ExpatCertificate certificate, ExpatUser user) throws IOException {
+    ProcessDescriptor processDescriptor = new ProcessDescriptor.Builder()
+        .addCommand("/usr/bin/sudo")
+        .addCommand(Paths.get(intermediateCA, userCertsScript).toString())
+        .addCommand(id)
+        .addCommand(user.getCountry())
+        .addCommand(user.getCity())
+        .addCommand(user.getOrganization())
+        .addCommand(user.getEmail())
+        .addCommand(user.getOrcid())
+        .addCommand(certificate.getPlainPassword())
+        .ignoreOutErrStreams(true)
+        .build();
+    
+    Path keyStoreFile = KEYSTORE_DIR.resolve(id + "__kstore.jks");
+    Path trustStoreFile = KEYSTORE_DIR.resolve(id + "__tstore.jks");
+    try {
+      ProcessResult result = ProcessExecutor.getExecutor().execute(processDescriptor);
+      if (result.getExitCode() != 0) {
+        throw new IOException("Certificate generation exited with code " + result.getExitCode());
+      }
+      certificate.setKeyStore(Files.readAllBytes(keyStoreFile));
+      certificate.setTrustStore(Files.readAllBytes(trustStoreFile));
+    } finally {
+      // The key store holds the private key, do not leave it behind
+      delete(keyStoreFile, trustStoreFile);
+    }
+  }
+  
+  // The script runs as root, its files in the sticky /tmp can only be deleted by root
+  private void delete(Path... files) {
+    for (Path file : files) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ex) {
+        undeleted.add(file.toString());
+      }
+    }
+  }
+  
+  @Override
+  public void chunkStored() {
+    deleteWithSudo();
+  }
+  
+  private synchronized void deleteWithSudo() {
+    List<String> files = new ArrayList<>();
+    for (String file = undeleted.poll(); file != null; file = undeleted.poll()) {
+      files.add(file);
+    }
+    if (files.isEmpty()) {
+      return;
+    }
+    ProcessDescriptor.Builder rm = new ProcessDescriptor.Builder()
+        .addCommand("/usr/bin/sudo")
+        .addCommand("-n")
+        .addCommand("/bin/rm")
+        .addCommand("-f");
+    for (String file : files) {
+      rm.addCommand(file);
+    }
+    try {
+      ProcessResult result = ProcessExecutor.getExecutor().execute(rm.ignoreOutErrStreams(true).build());
+      if (result.getExitCode() == 0) {
+        return;
+      }
+    } catch (IOException ex) {
+      LOGGER.debug("Could not run rm with sudo", ex);
+    }
+    LOGGER.error("Could not delete " + files + ", remove them manually");
+    storesLeft.addAndGet(files.size());
+    StepMetrics stepMetrics = metrics;
+    if (stepMetrics != null) {
+      stepMetrics.add(STORES_LEFT, files.size());
+    }
+  }
+  
+  @Override
+  public int defaultThreads() {
+    return 1;
+  }
+  
+  @Override
+  public int maxThreads() {
+    return ProcessExecutor.getExecutor().getMaxConcurrentProcesses();
+  }
+  
+  @Override
+  public void close() {
+    deleteWithSudo();
+    int left = storesLeft.getAndSet(0);
+    if (left > 0) {
+      LOGGER.error(left + " key and trust stores written by " + userCertsScript + " are left in " + KEYSTORE_DIR
+          + ", they hold private keys and have to be removed manually");
+    }
+  }
+}